@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.benchmarks;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.knoesis.util.concurrent.producerconsumer.Consumer;
+import org.knoesis.util.concurrent.producerconsumer.Producer;
+import org.knoesis.util.concurrent.producerconsumer.ProducerConsumer;
+import org.knoesis.util.concurrent.producerconsumer.Production;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures element throughput as the number of consumers grows, with a single shared work queue and with a work 
+ * queue per consumer ({@link ProducerConsumer.Builder#useWorkStealing()}). Scores are elements per millisecond, so a 
+ * flat line across {@code consumers} means the queue, not the consumers, is the bottleneck. Run with e.g. 
+ * {@code java -jar target/benchmarks.jar ConsumerScalability -p cost=0}.
+ * @author Alan Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@OperationsPerInvocation(ConsumerScalabilityBenchmark.ELEMENTS)
+public class ConsumerScalabilityBenchmark {
+    
+    static final int ELEMENTS = 1000000;
+    
+    /**
+     * Cost of consuming each element, in {@link Blackhole#consumeCPU} tokens.
+     */
+    @Param({"0", "100"})
+    public long cost;
+    
+    @Param({"4"})
+    public int producers;
+    
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int consumers;
+    
+    @Param({"false", "true"})
+    public boolean workStealing;
+    
+    @Param({"1", "64"})
+    public int batchSize;
+    
+    private ExecutorService executor;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(producers + consumers);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void producerConsumer(final Blackhole bh) throws InterruptedException {
+        ProducerConsumer.Builder<Integer> builder = ProducerConsumer.<Integer>newBuilder()
+                .setExecutor(executor)
+                .setBufferSize(1024)
+                .setBatchSize(batchSize);
+        if (workStealing) {
+            builder.useWorkStealing();
+        }
+        for (int i = 0; i < producers; i++) {
+            builder.addProducer(new RangeProducer(ELEMENTS / producers));
+        }
+        for (int i = 0; i < consumers; i++) {
+            builder.addConsumer(new Consumer<Integer>() {
+                @Override
+                public void consume(Iterable<Integer> consumables) {
+                    for (Integer element : consumables) {
+                        Blackhole.consumeCPU(cost);
+                        bh.consume(element);
+                    }
+                }
+            });
+        }
+        builder.build().begin();
+    }
+    
+    private static class RangeProducer implements Producer<Integer> {
+        
+        private final int count;
+
+        RangeProducer(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void produce(Production<Integer> production) {
+            try {
+                for (int i = 0; i < count; i++) {
+                    production.put(i);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+    }
+
+}
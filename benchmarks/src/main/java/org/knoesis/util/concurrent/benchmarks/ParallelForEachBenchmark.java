@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.knoesis.util.concurrent.parallel.Operation;
+import org.knoesis.util.concurrent.parallel.Parallel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares {@link Parallel#forEach} against a sequential loop, {@code parallelStream()} and a hand-written 
+ * {@link ExecutorService} split, across input sizes, operation costs and collection types.
+ * @author Alan Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParallelForEachBenchmark {
+    
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Number of elements to process.
+     */
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+    
+    /**
+     * Cost of the operation on each element, in {@link Blackhole#consumeCPU} tokens.
+     */
+    @Param({"0", "100", "10000"})
+    public long cost;
+    
+    /**
+     * {@code ARRAY_LIST} takes the range-splitting path; {@code LINKED_LIST} takes the work queue path.
+     */
+    @Param({"ARRAY_LIST", "LINKED_LIST"})
+    public String collection;
+    
+    private Collection<Integer> elements;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<Integer> list = collection.equals("ARRAY_LIST") ? new ArrayList<Integer>(size) : new LinkedList<Integer>();
+        for (int i = 0; i < size; i++) {
+            list.add(i);
+        }
+        elements = list;
+        executor = Executors.newFixedThreadPool(CORES);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void sequentialLoop(Blackhole bh) {
+        for (Integer element : elements) {
+            Blackhole.consumeCPU(cost);
+            bh.consume(element);
+        }
+    }
+
+    @Benchmark
+    public void parallelForEach(final Blackhole bh) throws InterruptedException {
+        Parallel.forEach(elements, new Operation<Integer>() {
+            @Override
+            public void perform(Integer element) {
+                Blackhole.consumeCPU(cost);
+                bh.consume(element);
+            }
+        });
+    }
+
+    @Benchmark
+    public void parallelStream(final Blackhole bh) {
+        elements.parallelStream().forEach(element -> {
+            Blackhole.consumeCPU(cost);
+            bh.consume(element);
+        });
+    }
+
+    /**
+     * Splits a copy of the input into one contiguous slice per core and submits each slice to a fixed pool.
+     */
+    @Benchmark
+    public void executorService(final Blackhole bh) throws Exception {
+        final Integer[] array = elements.toArray(new Integer[size]);
+        List<Future<?>> futures = new ArrayList<Future<?>>(CORES);
+        for (int t = 0; t < CORES; t++) {
+            final int from = (int) ((long) size * t / CORES);
+            final int to = (int) ((long) size * (t + 1) / CORES);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = from; i < to; i++) {
+                        Blackhole.consumeCPU(cost);
+                        bh.consume(array[i]);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.knoesis.util.concurrent.producerconsumer.Consumer;
+import org.knoesis.util.concurrent.producerconsumer.Producer;
+import org.knoesis.util.concurrent.producerconsumer.ProducerConsumer;
+import org.knoesis.util.concurrent.producerconsumer.Production;
+import org.knoesis.util.concurrent.producerconsumer.QueueStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures a complete {@link ProducerConsumer#begin()} run across producer/consumer ratios, buffer sizes, queue 
+ * strategies and batch sizes, against a baseline which submits one task per element to a fixed pool.<br/><br/>
+ * The full parameter matrix is large; narrow it with {@code -p}, e.g. 
+ * {@code java -jar target/benchmarks.jar ProducerConsumer -p queueStrategy=RING_BUFFER -p consumers=8}.
+ * @author Alan Smith
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerConsumerBenchmark {
+    
+    /**
+     * Total number of elements produced, split evenly between producers.
+     */
+    @Param({"100000"})
+    public int elements;
+    
+    /**
+     * Cost of consuming each element, in {@link Blackhole#consumeCPU} tokens.
+     */
+    @Param({"0", "1000"})
+    public long cost;
+    
+    @Param({"1", "4"})
+    public int producers;
+    
+    @Param({"1", "8"})
+    public int consumers;
+    
+    @Param({"1024", "2147483647"})
+    public int bufferSize;
+    
+    @Param({"LINKED", "ARRAY", "RING_BUFFER"})
+    public QueueStrategy queueStrategy;
+    
+    @Param({"1", "64"})
+    public int batchSize;
+    
+    private ExecutorService executor;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(consumers);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void producerConsumer(final Blackhole bh) throws InterruptedException {
+        ProducerConsumer.Builder<Integer> builder = ProducerConsumer.<Integer>newBuilder()
+                .setBufferSize(bufferSize)
+                .setQueueStrategy(queueStrategy)
+                .setBatchSize(batchSize);
+        for (int i = 0; i < producers; i++) {
+            builder.addProducer(new RangeProducer(elements / producers));
+        }
+        for (int i = 0; i < consumers; i++) {
+            builder.addConsumer(new Consumer<Integer>() {
+                @Override
+                public void consume(Iterable<Integer> consumables) {
+                    for (Integer element : consumables) {
+                        Blackhole.consumeCPU(cost);
+                        bh.consume(element);
+                    }
+                }
+            });
+        }
+        builder.build().begin();
+    }
+
+    /**
+     * Producer threads submit a task per element to a fixed pool of {@code consumers} threads. Ignores the buffer 
+     * size, queue strategy and batch size parameters.
+     */
+    @Benchmark
+    public void executorService(final Blackhole bh) throws InterruptedException {
+        final int perProducer = elements / producers;
+        final CountDownLatch done = new CountDownLatch(perProducer * producers);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perProducer; i++) {
+                        final Integer element = i;
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                Blackhole.consumeCPU(cost);
+                                bh.consume(element);
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        done.await();
+    }
+    
+    private static class RangeProducer implements Producer<Integer> {
+        
+        private final int count;
+
+        RangeProducer(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void produce(Production<Integer> production) {
+            try {
+                for (int i = 0; i < count; i++) {
+                    production.put(i);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+/**
+ * Defines how items are gathered into a mutable container (e.g. a collection, map or counter) by 
+ * {@link Parallel#collect}. Each thread accumulates into containers of its own, which are combined in pairs once 
+ * filled, so neither the container nor the methods of this interface need to be thread safe.
+ * @author Alan Smith
+ */
+public interface Aggregation<T, A> {
+    
+    /**
+     * @return a new, empty container
+     */
+    A newContainer();
+    
+    /**
+     * Adds an item to a container.
+     * @param container the container to add to
+     * @param item the item to add
+     */
+    void accumulate(A container, T item);
+    
+    /**
+     * Combines two containers, which hold items from adjacent ranges of the input. May return either argument after 
+     * adding the contents of the other to it.
+     * @param left the container holding the earlier items
+     * @param right the container holding the later items
+     * @return a container holding the items of both
+     */
+    A combine(A left, A right);
+
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Divides an index range {@code [0, size)} into chunks which are claimed by a number of workers.
+ * @author Alan Smith
+ */
+abstract class Chunker {
+    
+    /**
+     * How long an {@link Schedule#ADAPTIVE} chunk should take to process, in nanoseconds. Long enough that claiming 
+     * a chunk is negligible, short enough that threads finish close together.
+     */
+    static final long ADAPTIVE_TARGET_NANOS = 100000;
+    
+    final int size;
+    private volatile boolean cancelled = false;
+
+    Chunker(int size) {
+        this.size = size;
+    }
+    
+    /**
+     * Claims the next chunk for the given worker, setting its {@code from} and {@code to}.
+     * @return false if no elements remain
+     */
+    final boolean next(Worker worker) {
+        return !cancelled && claim(worker);
+    }
+    
+    abstract boolean claim(Worker worker);
+    
+    /**
+     * Prevents any further chunks from being claimed.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+    
+    /**
+     * The state of a single worker. Only accessed by the thread running that worker.
+     */
+    static final class Worker {
+        
+        final int index;
+        int from;
+        int to;
+        long claimedAt;
+        double nanosPerElement = -1;
+
+        Worker(int index) {
+            this.index = index;
+        }
+        
+    }
+    
+    static final class Static extends Chunker {
+        
+        private final int parallelism;
+
+        Static(int size, int parallelism) {
+            super(size);
+            this.parallelism = parallelism;
+        }
+
+        @Override
+        boolean claim(Worker worker) {
+            if (worker.to > 0 || worker.index >= parallelism) {
+                return false;
+            }
+            worker.from = (int) ((long) size * worker.index / parallelism);
+            worker.to = (int) ((long) size * (worker.index + 1) / parallelism);
+            return worker.to > worker.from;
+        }
+        
+    }
+    
+    static final class Fixed extends Chunker {
+        
+        private final AtomicInteger next = new AtomicInteger();
+        private final int chunkSize;
+
+        Fixed(int size, int chunkSize) {
+            super(size);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        boolean claim(Worker worker) {
+            int from = next.getAndAdd(chunkSize);
+            if (from >= size || from < 0) {
+                next.set(size);
+                return false;
+            }
+            worker.from = from;
+            worker.to = (int) Math.min(size, (long) from + chunkSize);
+            return true;
+        }
+        
+    }
+    
+    /**
+     * Claims chunks whose size is chosen by the subclass.
+     */
+    abstract static class Shrinking extends Chunker {
+        
+        final AtomicInteger next = new AtomicInteger();
+        final int parallelism;
+
+        Shrinking(int size, int parallelism) {
+            super(size);
+            this.parallelism = parallelism;
+        }
+        
+        /**
+         * Called once per claim, before {@link #chunkSize}, while the worker still holds its previous chunk.
+         */
+        void claiming(Worker worker) {
+        }
+        
+        /**
+         * @param remaining the number of unclaimed elements
+         * @return the number of elements the worker should claim, at least one
+         */
+        abstract int chunkSize(Worker worker, int remaining);
+
+        @Override
+        final boolean claim(Worker worker) {
+            claiming(worker);
+            while (true) {
+                int from = next.get();
+                int remaining = size - from;
+                if (remaining <= 0) {
+                    return false;
+                }
+                int to = from + Math.min(remaining, chunkSize(worker, remaining));
+                if (next.compareAndSet(from, to)) {
+                    worker.from = from;
+                    worker.to = to;
+                    return true;
+                }
+            }
+        }
+        
+        int guided(int remaining) {
+            return (remaining + parallelism - 1) / parallelism;
+        }
+        
+    }
+    
+    static final class Guided extends Shrinking {
+        
+        private final int minChunkSize;
+
+        Guided(int size, int parallelism, int minChunkSize) {
+            super(size, parallelism);
+            this.minChunkSize = minChunkSize;
+        }
+
+        @Override
+        int chunkSize(Worker worker, int remaining) {
+            return Math.max(minChunkSize, guided(remaining));
+        }
+        
+    }
+    
+    /**
+     * Estimates each worker's cost per element from the time between its claims, as a moving average.
+     */
+    static final class Adaptive extends Shrinking {
+
+        Adaptive(int size, int parallelism) {
+            super(size, parallelism);
+        }
+
+        @Override
+        void claiming(Worker worker) {
+            long now = System.nanoTime();
+            if (worker.to > worker.from) {
+                double sample = (double) (now - worker.claimedAt) / (worker.to - worker.from);
+                worker.nanosPerElement = worker.nanosPerElement < 0 ? sample : (worker.nanosPerElement + sample) / 2;
+            }
+            worker.claimedAt = now;
+        }
+
+        @Override
+        int chunkSize(Worker worker, int remaining) {
+            if (worker.nanosPerElement < 0) {
+                return 1;
+            }
+            long target = (long) (ADAPTIVE_TARGET_NANOS / Math.max(1, worker.nanosPerElement));
+            return (int) Math.max(1, Math.min(target, guided(remaining)));
+        }
+        
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+import java.util.ArrayList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.knoesis.util.concurrent.producerconsumer.DeadLetterSink;
+import org.knoesis.util.concurrent.producerconsumer.FailurePolicy;
+import org.knoesis.util.concurrent.producerconsumer.ProcessingException;
+
+/**
+ * Performs an {@link Operation} on single elements, retrying it and handling its exceptions as configured by the 
+ * {@link Options} of one call. Shared by all the threads of the call.
+ * @author Alan Smith
+ */
+final class Failures {
+    
+    /**
+     * Logs exceptions, without retrying. Holds no state, so it is shared by all calls without {@link Options}.
+     */
+    static final Failures LOG = new Failures(FailurePolicy.LOG, 1, null);
+    
+    private final FailurePolicy policy;
+    private final int maxAttempts;
+    private final DeadLetterSink<Object> deadLetters;
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+    private volatile boolean stopped = false;
+
+    Failures(Options options) {
+        this(options.getFailurePolicy(), options.getMaxAttempts(), options.getDeadLetterSink());
+    }
+    
+    private Failures(FailurePolicy policy, int maxAttempts, DeadLetterSink<Object> deadLetters) {
+        this.policy = policy;
+        this.maxAttempts = maxAttempts;
+        this.deadLetters = deadLetters;
+    }
+    
+    /**
+     * Performs the operation on the element, retrying it up to the maximum number of attempts, and then passing the 
+     * element to the dead-letter sink or handling the last exception according to the failure policy.
+     */
+    <E> void perform(Operation<? super E> operation, E element) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                operation.perform(element);
+                return;
+            } catch (RuntimeException ex) {
+                if (attempt < maxAttempts) {
+                    continue;
+                }
+                if (deadLetters == null) {
+                    failed(ex);
+                    return;
+                }
+                try {
+                    deadLetters.deadLetter(element, ex);
+                } catch (RuntimeException sinkFailure) {
+                    sinkFailure.addSuppressed(ex);
+                    failed(sinkFailure);
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * @return whether an exception has stopped the call under {@link FailurePolicy#FAIL_FAST}
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+    
+    private void failed(RuntimeException ex) {
+        switch (policy) {
+            case FAIL_FAST:
+                if (stopped) {
+                    return;
+                }
+                failures.add(ex);
+                stopped = true;
+                break;
+            case COLLECT:
+                failures.add(ex);
+                break;
+            default:
+                Logger.getLogger(Parallel.class.getName()).log(Level.SEVERE, "Operation threw exception", ex);
+        }
+    }
+    
+    /**
+     * Called once the call has finished.
+     * @throws ProcessingException if any exceptions were recorded
+     */
+    void rethrow() {
+        if (!failures.isEmpty()) {
+            throw new ProcessingException(new ArrayList<Throwable>(failures));
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+/**
+ * Defines a generic function from one item to another.
+ * @author Alan Smith
+ */
+public interface Mapper<T, R> {
+    
+    /**
+     * Maps an item to a result. Exceptions thrown from this method are rethrown by the {@link Parallel} method which 
+     * called it.
+     * @param item the item to map
+     * @return the result for the item
+     */
+    R map(T item);
+
+}
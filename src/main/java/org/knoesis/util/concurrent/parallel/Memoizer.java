@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Mapper} which remembers the results of another, so that threads which share expensive keys compute each 
+ * one once. Created by {@link Parallel#memoize}.<br/><br/>Concurrent calls for the same key wait for a single 
+ * computation rather than each computing it. At most the maximum size of results are kept, and the least recently 
+ * used results are evicted to make room. The keys are divided between independently locked segments by their hash, 
+ * so threads working on different keys rarely contend; each segment evicts its own least recently used result, which 
+ * approximates doing so across all of them.<br/><br/>If the mapper throws an exception, it is rethrown to every 
+ * caller waiting for that key, and nothing is remembered, so the next call computes the result again. The mapper 
+ * must not call this instance for the same key, or it will wait for itself.
+ * @author Alan Smith
+ */
+public final class Memoizer<K, V> implements Mapper<K, V> {
+    
+    private static final int ALL_CORES = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * Fewest results each segment should hold, so that evicting the least recently used within a segment remains a 
+     * good approximation.
+     */
+    private static final int MIN_SEGMENT_SIZE = 16;
+    
+    private final Mapper<? super K, ? extends V> mapper;
+    private final Segment<V>[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    Memoizer(Mapper<? super K, ? extends V> mapper, int maxSize) {
+        this.mapper = mapper;
+        int count = 1;
+        while (count < 4 * ALL_CORES && count * 2 * MIN_SEGMENT_SIZE <= maxSize) {
+            count <<= 1;
+        }
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment<V>(maxSize / count + (i < maxSize % count ? 1 : 0), evictions);
+        }
+    }
+
+    /**
+     * Returns the remembered result for the key, computing it if there is none, or waiting for it if another thread 
+     * is already computing it.
+     * @param key the key to map
+     * @return the result for the key
+     */
+    @Override
+    public V map(K key) {
+        Segment<V> segment = segmentFor(key);
+        CompletableFuture<V> result;
+        boolean computing = false;
+        segment.lock.lock();
+        try {
+            result = segment.results.get(key);
+            if (result == null) {
+                result = new CompletableFuture<V>();
+                segment.results.put(key, result);
+                computing = true;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        if (!computing) {
+            hits.increment();
+            try {
+                return result.join();
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw (RuntimeException) cause;
+            }
+        }
+        misses.increment();
+        V value;
+        try {
+            value = mapper.map(key);
+        } catch (RuntimeException ex) {
+            segment.forget(key, result);
+            result.completeExceptionally(ex);
+            throw ex;
+        } catch (Error ex) {
+            segment.forget(key, result);
+            result.completeExceptionally(ex);
+            throw ex;
+        }
+        result.complete(value);
+        return value;
+    }
+    
+    private Segment<V> segmentFor(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= hash >>> 16;
+        return segments[hash & (segments.length - 1)];
+    }
+    
+    /**
+     * Forgets every remembered result. Computations in progress still complete for the callers waiting on them.
+     */
+    public void clear() {
+        for (Segment<V> segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.results.clear();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @return the number of results remembered or being computed
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            segment.lock.lock();
+            try {
+                size += segment.results.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+    
+    /**
+     * @return the number of calls answered with a remembered result, including those which waited for another 
+     * thread's computation
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return the number of calls which computed a result
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+    
+    /**
+     * @return the number of results forgotten to make room for others
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+    
+    /**
+     * @return the fraction of calls answered with a remembered result, or 0 if there have been none
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+    
+    /**
+     * A share of the results, in least recently used order, guarded by its own lock.
+     */
+    private static final class Segment<V> {
+        
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<Object, CompletableFuture<V>> results;
+
+        Segment(final int capacity, final LongAdder evictions) {
+            results = new LinkedHashMap<Object, CompletableFuture<V>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Object, CompletableFuture<V>> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        
+        /**
+         * Removes a failed computation, unless it has already been evicted and replaced.
+         */
+        void forget(Object key, CompletableFuture<V> result) {
+            lock.lock();
+            try {
+                if (results.get(key) == result) {
+                    results.remove(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+    }
+
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+import java.util.concurrent.Executor;
+import org.knoesis.util.concurrent.producerconsumer.DeadLetterSink;
+import org.knoesis.util.concurrent.producerconsumer.FailurePolicy;
+
+/**
+ * Settings for {@link Parallel#forEach(java.util.Collection, Operation, Options)}, created with a {@link Builder}:
+ * <pre>
+ * {@code
+ * Options options = Options.newBuilder()
+ *         .setSchedule(Schedule.ADAPTIVE)
+ *         .setNumThreads(8)
+ *         .build();
+ * }
+ * </pre>
+ * Instances are immutable and may be shared.
+ * @author Alan Smith
+ */
+public final class Options {
+    
+    private static final int ALL_CORES = Runtime.getRuntime().availableProcessors();
+    
+    private final Schedule schedule;
+    private final int chunkSize;
+    private final int numThreads;
+    private final Executor executor;
+    private final FailurePolicy failurePolicy;
+    private final int maxAttempts;
+    private final DeadLetterSink<Object> deadLetters;
+    private final int inlineThreshold;
+
+    private Options(Builder builder) {
+        this.schedule = builder.schedule;
+        this.chunkSize = builder.chunkSize;
+        this.numThreads = builder.numThreads;
+        this.executor = builder.executor;
+        this.failurePolicy = builder.failurePolicy;
+        this.maxAttempts = builder.maxAttempts;
+        this.deadLetters = builder.deadLetters;
+        this.inlineThreshold = builder.inlineThreshold;
+    }
+    
+    /**
+     * @return a new {@code Options.Builder} instance
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    public Schedule getSchedule() {
+        return schedule;
+    }
+
+    /**
+     * @return the chunk size, or 0 if it is chosen from the number of elements and threads
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * @return the executor, or {@code null} to use a shared pool
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public FailurePolicy getFailurePolicy() {
+        return failurePolicy;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return the sink for elements which failed on every attempt, or {@code null}
+     */
+    public DeadLetterSink<Object> getDeadLetterSink() {
+        return deadLetters;
+    }
+
+    public int getInlineThreshold() {
+        return inlineThreshold;
+    }
+    
+    public static final class Builder {
+        
+        private Schedule schedule = Schedule.WORK_STEALING;
+        private int chunkSize = 0;
+        private int numThreads = ALL_CORES;
+        private Executor executor;
+        private FailurePolicy failurePolicy = FailurePolicy.LOG;
+        private int maxAttempts = 1;
+        private DeadLetterSink<Object> deadLetters;
+        private int inlineThreshold = 0;
+        
+        private Builder() {
+        }
+        
+        /**
+         * Sets how elements are divided among threads. Defaults to {@link Schedule#WORK_STEALING}.
+         * @param schedule
+         * @return this
+         */
+        public Builder setSchedule(Schedule schedule) {
+            if (schedule == null) {
+                throw new NullPointerException("schedule");
+            }
+            this.schedule = schedule;
+            return this;
+        }
+        
+        /**
+         * Sets the number of elements claimed at a time by {@link Schedule#FIXED_CHUNK}, or the smallest number 
+         * claimed by {@link Schedule#GUIDED}. By default, it is chosen so that each thread claims several chunks.
+         * @param chunkSize
+         * @return this
+         */
+        public Builder setChunkSize(int chunkSize) {
+            if (chunkSize < 1) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.chunkSize = chunkSize;
+            return this;
+        }
+        
+        /**
+         * Sets the number of threads to use. Defaults to {@code Runtime.getRuntime().availableProcessors()}.
+         * @param numThreads
+         * @return this
+         */
+        public Builder setNumThreads(int numThreads) {
+            if (numThreads < 1) {
+                throw new IllegalArgumentException("numThreads must be positive");
+            }
+            this.numThreads = numThreads;
+            return this;
+        }
+        
+        /**
+         * Runs on the given executor, which is not shut down, instead of a shared pool. It must be able to run 
+         * {@code numThreads} tasks at the same time.
+         * @param executor
+         * @return this
+         */
+        public Builder setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+        
+        /**
+         * Sets the number of elements at or below which the operation is performed on the calling thread alone, 
+         * without handing any work to other threads. Suits latency-sensitive callers whose inputs are often too 
+         * small, or whose operation too cheap, to repay waking other threads. Defaults to 0, so that only a single 
+         * element (or a single thread) is processed inline.
+         * @param inlineThreshold
+         * @return this
+         */
+        public Builder setInlineThreshold(int inlineThreshold) {
+            if (inlineThreshold < 0) {
+                throw new IllegalArgumentException("inlineThreshold must not be negative");
+            }
+            this.inlineThreshold = inlineThreshold;
+            return this;
+        }
+        
+        /**
+         * Sets what happens when the operation throws an exception: it is logged, the remaining elements are skipped 
+         * and it is rethrown, or it is rethrown once every element has been processed, in either case as the cause 
+         * of a {@link org.knoesis.util.concurrent.producerconsumer.ProcessingException}. Defaults to 
+         * {@link FailurePolicy#LOG}.
+         * @param failurePolicy
+         * @return this
+         */
+        public Builder setFailurePolicy(FailurePolicy failurePolicy) {
+            if (failurePolicy == null) {
+                throw new NullPointerException("failurePolicy");
+            }
+            this.failurePolicy = failurePolicy;
+            return this;
+        }
+        
+        /**
+         * Performs the operation on an element again when it throws an exception, up to {@code maxAttempts} times in 
+         * all. An element which fails on every attempt is passed to the dead-letter sink, if there is one, and 
+         * otherwise its last exception is handled by the failure policy. Defaults to a single attempt and no sink. 
+         * As options are not tied to an element type, the sink's type is not checked: these options must only be 
+         * used with elements the sink accepts.
+         * @param <T> the type of element the sink accepts
+         * @param maxAttempts the number of times to attempt each element, at least 1
+         * @param deadLetters receives the elements which failed on every attempt, or {@code null}
+         * @return this
+         */
+        public <T> Builder setRetries(int maxAttempts, DeadLetterSink<T> deadLetters) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be positive");
+            }
+            this.maxAttempts = maxAttempts;
+            this.deadLetters = (DeadLetterSink<Object>) deadLetters;
+            return this;
+        }
+        
+        /**
+         * @return a new instance of {@code Options} configured by this {@code Builder}.
+         */
+        public Options build() {
+            return new Options(this);
+        }
+        
+    }
+
+}
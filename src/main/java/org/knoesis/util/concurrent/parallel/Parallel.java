@@ -16,13 +16,35 @@
 
 package org.knoesis.util.concurrent.parallel;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import org.knoesis.util.concurrent.producerconsumer.Completion;
 import org.knoesis.util.concurrent.producerconsumer.Consumer;
+import org.knoesis.util.concurrent.producerconsumer.FailurePolicy;
+import org.knoesis.util.concurrent.producerconsumer.Pipeline;
+import org.knoesis.util.concurrent.producerconsumer.ProcessingException;
 import org.knoesis.util.concurrent.producerconsumer.Producer;
 import org.knoesis.util.concurrent.producerconsumer.ProducerConsumer;
 import org.knoesis.util.concurrent.producerconsumer.Production;
+import org.knoesis.util.concurrent.producerconsumer.Service;
+import org.knoesis.util.concurrent.producerconsumer.Stage;
 
 /**
  * General purpose utilities for writing concurrent programs.
@@ -33,7 +55,32 @@ public class Parallel {
     private static final int ALL_CORES = Runtime.getRuntime().availableProcessors();
     
     /**
-     * Concurrently runs the given {@link Operation} on each item in the {@link Collection}.
+     * Number of leaf tasks created per thread when splitting an indexed range. More leaves than threads gives idle 
+     * workers something to steal when the cost of the operation varies between elements.
+     */
+    private static final int LEAVES_PER_THREAD = 8;
+    
+    /**
+     * Number of elements which may wait in the work queue per consumer when the input is streamed, bounding the 
+     * memory used regardless of the size of the input.
+     */
+    private static final int STREAM_BUFFER_PER_THREAD = 64;
+    
+    /**
+     * Largest batch in which {@link #forEachAsync} hands elements to its threads, so that progress is reported and 
+     * cancellation takes effect reasonably often.
+     */
+    private static final int MAX_ASYNC_BATCH_SIZE = 256;
+    
+    private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<Integer, ForkJoinPool>();
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each item in the {@link Collection}.<br/><br/>
+     * The index range of the collection is divided into chunks, which the calling thread and {@code numThreads - 1} 
+     * pooled threads claim in turn until none remain, so that the calling thread does its share of the work rather 
+     * than waiting. With a single thread, or a single element, the operation runs on the calling thread alone. 
+     * Elements of a {@link List} which implements {@link RandomAccess} (e.g. {@link java.util.ArrayList}) are read 
+     * in place; other collections are first copied to an array.
      * 
      * @param <E> The type of element in the {@link Collection} to process
      * @param elements The {@link Collection} of elements to process concurrently
@@ -42,16 +89,27 @@ public class Parallel {
      * @throws InterruptedException if the main thread is interrupted while waiting for the collection to finish processing
      */
     public static <E> void forEach(Collection<? extends E> elements, final Operation<? super E> operation, int numThreads) throws InterruptedException {
-        int size = elements.size();
-        if (size == 0) {
-            return;
-        }
-        final ProducerConsumer.Builder<E> pcb = ProducerConsumer.<E>newBuilder()
-                .addProducer(new CollectionProducer<E>(elements));
-        for (int i = 0; i < Math.min(numThreads, size) - 1; i++) {
-            pcb.addConsumer(new OperationConsumer<E>(operation));
+        forEach(elements, operation, numThreads, null);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each item in the {@link Collection}, using threads from the 
+     * given {@link Executor}, which is not shut down. If the executor is a {@link ForkJoinPool}, the index range is 
+     * split across it recursively while the calling thread waits; otherwise, the calling thread and 
+     * {@code numThreads - 1} tasks on the executor each repeatedly claim the next chunk of indices, and the executor 
+     * must be able to run that many tasks at the same time.
+     * 
+     * @param <E> The type of element in the {@link Collection} to process
+     * @param elements The {@link Collection} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each item in the {@link Collection}
+     * @param numThreads The number of threads to use
+     * @param executor The {@link Executor} to run on, or {@code null} to use a shared pool
+     * @throws InterruptedException if the main thread is interrupted while waiting for the collection to finish processing
+     */
+    public static <E> void forEach(Collection<? extends E> elements, final Operation<? super E> operation, int numThreads, Executor executor) throws InterruptedException {
+        if (!elements.isEmpty()) {
+            forEachIndexed(indexed(elements), operation, numThreads, executor, 0, Failures.LOG);
         }
-        pcb.build().begin();
     }
     
     /**
@@ -67,21 +125,876 @@ public class Parallel {
         forEach(elements, operation, ALL_CORES);
     }
     
+    /**
+     * Begins running the given {@link Operation} on each item in the {@link Collection} concurrently, and returns 
+     * without waiting for it to finish. The items are handed from a producer thread to the worker threads in batches, 
+     * so the returned handle reports progress and may be used to cancel the remaining items. As the calling thread 
+     * returns at once, it does not take part: the producer thread and {@code numThreads - 1} worker threads (at 
+     * least one) all come from the pool.
+     * 
+     * @param <E> The type of element in the {@link Collection} to process
+     * @param elements The {@link Collection} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each item in the {@link Collection}
+     * @param numThreads The number of threads to use
+     * @return a handle which completes once every item has been processed
+     */
+    public static <E> Completion forEachAsync(Collection<? extends E> elements, final Operation<? super E> operation, int numThreads) {
+        int consumers = Math.max(1, Math.min(numThreads, elements.size()) - 1);
+        final ProducerConsumer.Builder<E> pcb = ProducerConsumer.<E>newBuilder()
+                .addProducer(new IteratorProducer<E>(elements.iterator()))
+                .setBatchSize(Math.max(1, Math.min(MAX_ASYNC_BATCH_SIZE, elements.size() / (consumers * LEAVES_PER_THREAD))));
+        for (int i = 0; i < consumers; i++) {
+            pcb.addConsumer(new OperationConsumer<E>(operation, Failures.LOG));
+        }
+        return pcb.build().beginAsync();
+    }
+    
+    /**
+     * Begins running the given {@link Operation} on each item in the {@link Collection} concurrently with the number 
+     * of threads determined by {@code Runtime.getRuntime().availableProcessors()}.
+     * 
+     * @see #forEachAsync(Collection, Operation, int)
+     */
+    public static <E> Completion forEachAsync(Collection<? extends E> elements, final Operation<? super E> operation) {
+        return forEachAsync(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each item in the {@link Collection}, dividing the items among 
+     * threads as described by the given {@link Options}. As with {@link #forEach(Collection, Operation, int)}, the 
+     * calling thread is one of the threads, and collections which do not allow random access are first copied to an 
+     * array. Collections no larger than the inline threshold are processed on the calling thread alone. Exceptions 
+     * thrown by the operation are retried and handled as set by the options.
+     * 
+     * @param <E> The type of element in the {@link Collection} to process
+     * @param elements The {@link Collection} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each item in the {@link Collection}
+     * @param options The schedule, number of threads, executor and failure handling to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the collection to finish processing
+     * @throws ProcessingException if the operation threw under {@link FailurePolicy#FAIL_FAST} or 
+     * {@link FailurePolicy#COLLECT}
+     */
+    public static <E> void forEach(Collection<? extends E> elements, final Operation<? super E> operation, Options options) throws InterruptedException {
+        Failures failures = new Failures(options);
+        if (elements.isEmpty()) {
+            return;
+        }
+        if (options.getSchedule() == Schedule.WORK_STEALING) {
+            forEachIndexed(indexed(elements), operation, options.getNumThreads(), options.getExecutor(), options.getInlineThreshold(), failures);
+        } else {
+            forEachScheduled(indexed(elements), operation, options, failures);
+        }
+        failures.rethrow();
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each item in the array, dividing the items among threads as 
+     * described by the given {@link Options}.
+     * 
+     * @see #forEach(Collection, Operation, Options)
+     */
+    public static <E> void forEach(E[] elements, final Operation<? super E> operation, Options options) throws InterruptedException {
+        forEach(Arrays.asList(elements), operation, options);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each element returned by the {@link Iterator}, which may be of 
+     * unknown or unbounded length. The calling thread reads the elements from the iterator and hands them, through a 
+     * bounded buffer, to {@code numThreads - 1} pooled threads as they become ready for them, so the memory used does 
+     * not grow with the input. With a single thread, the operation runs on the calling thread alone.
+     * 
+     * @param <E> The type of element to process
+     * @param elements The {@link Iterator} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each element
+     * @param numThreads The number of threads to use, including the calling thread
+     * @throws InterruptedException if the main thread is interrupted while waiting for the elements to finish processing
+     */
+    public static <E> void forEach(Iterator<? extends E> elements, final Operation<? super E> operation, int numThreads) throws InterruptedException {
+        if (numThreads <= 1) {
+            while (elements.hasNext()) {
+                Failures.LOG.perform(operation, elements.next());
+            }
+            return;
+        }
+        int consumers = numThreads - 1;
+        final ProducerConsumer.Builder<E> pcb = ProducerConsumer.<E>newBuilder()
+                .setBufferSize(consumers * STREAM_BUFFER_PER_THREAD);
+        for (int i = 0; i < consumers; i++) {
+            pcb.addConsumer(new OperationConsumer<E>(operation, Failures.LOG));
+        }
+        Service<E> service = pcb.build().startService();
+        boolean submitted = false;
+        try {
+            while (elements.hasNext()) {
+                service.submit(elements.next());
+            }
+            submitted = true;
+        } finally {
+            if (!submitted) {
+                // the iterator threw or the calling thread was interrupted
+                service.shutdownNow();
+            }
+        }
+        service.shutdown();
+        try {
+            service.getCompletion().await();
+        } catch (InterruptedException ex) {
+            service.shutdownNow();
+            throw ex;
+        }
+    }
+    
+    /**
+     * @see #forEach(Iterator, Operation, int)
+     */
+    public static <E> void forEach(Iterator<? extends E> elements, final Operation<? super E> operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each element produced by the {@link Producer}. The producer is 
+     * run on {@code producerThreads} threads at once, so it must be thread safe (e.g. a 
+     * {@link org.knoesis.util.concurrent.producerconsumer.MappedFileProducer}, whose threads scan different parts 
+     * of a file), and its elements reach the worker threads through a bounded buffer. Unlike the other 
+     * {@code forEach} methods, the calling thread does not take part: the producer and worker threads all come from 
+     * the pool, and the calling thread waits for them.
+     * 
+     * @param <E> The type of element to process
+     * @param producer The {@link Producer} of the elements to process concurrently
+     * @param producerThreads The number of threads to run the producer on
+     * @param operation The {@link Operation} to perform on each element
+     * @param numThreads The number of threads to perform the operation on
+     * @throws InterruptedException if the main thread is interrupted while waiting for the elements to finish processing
+     */
+    public static <E> void forEach(Producer<? extends E> producer, int producerThreads, final Operation<? super E> operation, int numThreads) throws InterruptedException {
+        final ProducerConsumer.Builder<E> pcb = ProducerConsumer.<E>newBuilder()
+                .setBufferSize(numThreads * STREAM_BUFFER_PER_THREAD);
+        for (int i = 0; i < producerThreads; i++) {
+            pcb.addProducer(producer);
+        }
+        for (int i = 0; i < numThreads; i++) {
+            pcb.addConsumer(new OperationConsumer<E>(operation, Failures.LOG));
+        }
+        pcb.build().begin();
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each element of the {@link Iterable}. Collections are 
+     * processed as by {@link #forEach(Collection, Operation, int)}; other iterables are streamed as by 
+     * {@link #forEach(Iterator, Operation, int)}, without asking for their size.
+     * 
+     * @param <E> The type of element to process
+     * @param elements The {@link Iterable} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each element
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the elements to finish processing
+     */
+    public static <E> void forEach(Iterable<? extends E> elements, final Operation<? super E> operation, int numThreads) throws InterruptedException {
+        if (elements instanceof Collection) {
+            forEach((Collection<? extends E>) elements, operation, numThreads);
+        } else {
+            forEach(elements.iterator(), operation, numThreads);
+        }
+    }
+    
+    /**
+     * @see #forEach(Iterable, Operation, int)
+     */
+    public static <E> void forEach(Iterable<? extends E> elements, final Operation<? super E> operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each element of the {@link Spliterator}, streaming them as by 
+     * {@link #forEach(Iterator, Operation, int)}.
+     * 
+     * @param <E> The type of element to process
+     * @param elements The {@link Spliterator} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each element
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the elements to finish processing
+     */
+    public static <E> void forEach(Spliterator<? extends E> elements, final Operation<? super E> operation, int numThreads) throws InterruptedException {
+        forEach(Spliterators.iterator(elements), operation, numThreads);
+    }
+    
+    /**
+     * @see #forEach(Spliterator, Operation, int)
+     */
+    public static <E> void forEach(Spliterator<? extends E> elements, final Operation<? super E> operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each element of the {@link Stream}, streaming them as by 
+     * {@link #forEach(Iterator, Operation, int)}. The stream is consumed but not closed.
+     * 
+     * @param <E> The type of element to process
+     * @param elements The {@link Stream} of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each element
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the elements to finish processing
+     */
+    public static <E> void forEach(Stream<? extends E> elements, final Operation<? super E> operation, int numThreads) throws InterruptedException {
+        forEach(elements.iterator(), operation, numThreads);
+    }
+    
+    /**
+     * @see #forEach(Stream, Operation, int)
+     */
+    public static <E> void forEach(Stream<? extends E> elements, final Operation<? super E> operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each item in the array. The index range of the array is 
+     * divided into chunks as by {@link #forEach(Collection, Operation, int)}; elements are not copied or queued.
+     * 
+     * @param <E> The type of element in the array to process
+     * @param elements The array of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each item in the array
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the array to finish processing
+     */
+    public static <E> void forEach(E[] elements, final Operation<? super E> operation, int numThreads) throws InterruptedException {
+        if (elements.length == 0) {
+            return;
+        }
+        forEachIndexed(Arrays.asList(elements), operation, numThreads, null, 0, Failures.LOG);
+    }
+    
+    /**
+     * Concurrently runs the given {@link Operation} on each item in the array with the number of threads
+     * determined by {@code Runtime.getRuntime().availableProcessors()}.
+     * 
+     * @param <E> The type of element in the array to process
+     * @param elements The array of elements to process concurrently
+     * @param operation The {@link Operation} to perform on each item in the array
+     * @throws InterruptedException if the main thread is interrupted while waiting for the array to finish processing
+     */
+    public static <E> void forEach(E[] elements, final Operation<? super E> operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link IntOperation} on each {@code int} in the range {@code [from, to)}. The range 
+     * is divided into chunks, claimed by the calling thread and pooled threads.
+     * 
+     * @param from The first value, inclusive
+     * @param to The last value, exclusive
+     * @param operation The {@link IntOperation} to perform on each value
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the range to finish processing
+     */
+    public static void forRange(int from, int to, final IntOperation operation, int numThreads) throws InterruptedException {
+        if (from >= to) {
+            return;
+        }
+        if ((long) to - from > Integer.MAX_VALUE) {
+            int middle = from + Integer.MAX_VALUE;
+            forRange(from, middle, operation, numThreads);
+            forRange(middle, to, operation, numThreads);
+            return;
+        }
+        final int start = from;
+        int size = to - from;
+        int parallelism = parallelism(size, numThreads);
+        forEachChunk(parallelism, new Chunker.Fixed(size, threshold(size, parallelism)), null, Failures.LOG, new Leaf() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = start + from; i < start + to; i++) {
+                    try {
+                        operation.perform(i);
+                    } catch (RuntimeException ex) {
+                        operationFailed(ex);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Concurrently runs the given {@link IntOperation} on each {@code int} in the range {@code [from, to)} with the 
+     * number of threads determined by {@code Runtime.getRuntime().availableProcessors()}.
+     * 
+     * @see #forRange(int, int, IntOperation, int)
+     */
+    public static void forRange(int from, int to, final IntOperation operation) throws InterruptedException {
+        forRange(from, to, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link IntOperation} on each item in the array, without boxing. The index range of 
+     * the array is divided into chunks, claimed by the calling thread and pooled threads.
+     * 
+     * @param elements The array of elements to process concurrently
+     * @param operation The {@link IntOperation} to perform on each item in the array
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the array to finish processing
+     */
+    public static void forEach(final int[] elements, final IntOperation operation, int numThreads) throws InterruptedException {
+        if (elements.length == 0) {
+            return;
+        }
+        int parallelism = parallelism(elements.length, numThreads);
+        forEachChunk(parallelism, new Chunker.Fixed(elements.length, threshold(elements.length, parallelism)), null, Failures.LOG, new Leaf() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        operation.perform(elements[i]);
+                    } catch (RuntimeException ex) {
+                        operationFailed(ex);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @see #forEach(int[], IntOperation, int)
+     */
+    public static void forEach(int[] elements, IntOperation operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link LongOperation} on each item in the array, without boxing. The index range 
+     * of the array is divided into chunks, claimed by the calling thread and pooled threads.
+     * 
+     * @param elements The array of elements to process concurrently
+     * @param operation The {@link LongOperation} to perform on each item in the array
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the array to finish processing
+     */
+    public static void forEach(final long[] elements, final LongOperation operation, int numThreads) throws InterruptedException {
+        if (elements.length == 0) {
+            return;
+        }
+        int parallelism = parallelism(elements.length, numThreads);
+        forEachChunk(parallelism, new Chunker.Fixed(elements.length, threshold(elements.length, parallelism)), null, Failures.LOG, new Leaf() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        operation.perform(elements[i]);
+                    } catch (RuntimeException ex) {
+                        operationFailed(ex);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @see #forEach(long[], LongOperation, int)
+     */
+    public static void forEach(long[] elements, LongOperation operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently runs the given {@link DoubleOperation} on each item in the array, without boxing. The index range 
+     * of the array is divided into chunks, claimed by the calling thread and pooled threads.
+     * 
+     * @param elements The array of elements to process concurrently
+     * @param operation The {@link DoubleOperation} to perform on each item in the array
+     * @param numThreads The number of threads to use
+     * @throws InterruptedException if the main thread is interrupted while waiting for the array to finish processing
+     */
+    public static void forEach(final double[] elements, final DoubleOperation operation, int numThreads) throws InterruptedException {
+        if (elements.length == 0) {
+            return;
+        }
+        int parallelism = parallelism(elements.length, numThreads);
+        forEachChunk(parallelism, new Chunker.Fixed(elements.length, threshold(elements.length, parallelism)), null, Failures.LOG, new Leaf() {
+            @Override
+            public void run(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    try {
+                        operation.perform(elements[i]);
+                    } catch (RuntimeException ex) {
+                        operationFailed(ex);
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * @see #forEach(double[], DoubleOperation, int)
+     */
+    public static void forEach(double[] elements, DoubleOperation operation) throws InterruptedException {
+        forEach(elements, operation, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently applies the given {@link Mapper} to each item in the {@link Collection}, returning the results in 
+     * the collection's iteration order. Each thread writes its results directly into a shared, pre-sized array.
+     * 
+     * @param <T> The type of element in the {@link Collection} to map
+     * @param <R> The type of result
+     * @param elements The {@link Collection} of elements to map concurrently
+     * @param mapper The {@link Mapper} to apply to each item
+     * @param numThreads The number of threads to use
+     * @return a fixed-size list of the results
+     * @throws InterruptedException if the main thread is interrupted while waiting for the collection to finish processing
+     */
+    public static <T, R> List<R> map(Collection<? extends T> elements, final Mapper<? super T, ? extends R> mapper, int numThreads) throws InterruptedException {
+        final List<? extends T> indexed = indexed(elements);
+        final Object[] results = new Object[indexed.size()];
+        if (results.length > 0) {
+            int parallelism = parallelism(indexed.size(), numThreads);
+            invoke(pool(parallelism), new RangeTask<Void>(0, results.length, threshold(indexed.size(), parallelism)) {
+                @Override
+                Void leaf(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        results[i] = mapper.map(indexed.get(i));
+                    }
+                    return null;
+                }
+            });
+        }
+        return (List<R>) Arrays.asList(results);
+    }
+    
+    /**
+     * Concurrently applies the given {@link Mapper} to each item in the {@link Collection} with the number of threads
+     * determined by {@code Runtime.getRuntime().availableProcessors()}.
+     * 
+     * @see #map(Collection, Mapper, int)
+     */
+    public static <T, R> List<R> map(Collection<? extends T> elements, final Mapper<? super T, ? extends R> mapper) throws InterruptedException {
+        return map(elements, mapper, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently applies the given {@link Mapper} to each element returned by the {@link Iterator}, which may be of 
+     * unknown or unbounded length, and passes the results to the given output {@link Operation} in input order. 
+     * Elements are streamed as by {@link #forEach(Iterator, Operation, int)}; a result which is ready before those of 
+     * earlier elements is held until they are, and threads which get too far ahead of the oldest unfinished element 
+     * wait for it, so memory use does not grow with the input.
+     * 
+     * @param <T> The type of element to map
+     * @param <R> The type of result
+     * @param elements The {@link Iterator} of elements to map concurrently
+     * @param mapper The {@link Mapper} to apply to each element
+     * @param output The {@link Operation} to pass each result to, which is called from one thread at a time
+     * @param numThreads The number of threads to map on
+     * @throws InterruptedException if the main thread is interrupted while waiting for the elements to finish processing
+     * @throws ProcessingException if the mapper threw, after the remaining elements have been abandoned
+     */
+    public static <T, R> void map(Iterator<? extends T> elements, final Mapper<? super T, ? extends R> mapper, Operation<? super R> output, int numThreads) throws InterruptedException {
+        int bufferSize = numThreads * STREAM_BUFFER_PER_THREAD;
+        Pipeline.<T>from(new IteratorProducer<T>(elements))
+                .stage(new Stage<T, R>() {
+                    @Override
+                    public void process(T element, Production<R> results) throws InterruptedException {
+                        results.put(mapper.map(element));
+                    }
+                }, numThreads, bufferSize)
+                .to(new OperationConsumer<R>(output, Failures.LOG), 1, bufferSize)
+                .setOrdered(bufferSize)
+                .build()
+                .begin();
+    }
+    
+    /**
+     * @see #map(Iterator, Mapper, Operation, int)
+     */
+    public static <T, R> void map(Iterator<? extends T> elements, final Mapper<? super T, ? extends R> mapper, Operation<? super R> output) throws InterruptedException {
+        map(elements, mapper, output, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently combines the items in the {@link Collection} using the given {@link Reducer}. Each thread reduces 
+     * a range of the collection on its own, and the partial results are combined in pairs, in order.
+     * 
+     * @param <T> The type of element in the {@link Collection} to reduce
+     * @param elements The {@link Collection} of elements to reduce concurrently
+     * @param identity The value which, when reduced with any item, yields that item (e.g. 0 for addition)
+     * @param reducer The associative {@link Reducer} to combine items with
+     * @param numThreads The number of threads to use
+     * @return the combination of all items, or {@code identity} if there are none
+     * @throws InterruptedException if the main thread is interrupted while waiting for the collection to finish processing
+     */
+    public static <T> T reduce(Collection<? extends T> elements, final T identity, final Reducer<T> reducer, int numThreads) throws InterruptedException {
+        final List<? extends T> indexed = indexed(elements);
+        if (indexed.isEmpty()) {
+            return identity;
+        }
+        int parallelism = parallelism(indexed.size(), numThreads);
+        return invoke(pool(parallelism), new RangeTask<T>(0, indexed.size(), threshold(indexed.size(), parallelism)) {
+            @Override
+            T leaf(int from, int to) {
+                T result = identity;
+                for (int i = from; i < to; i++) {
+                    result = reducer.reduce(result, indexed.get(i));
+                }
+                return result;
+            }
+
+            @Override
+            T combine(T left, T right) {
+                return reducer.reduce(left, right);
+            }
+        });
+    }
+    
+    /**
+     * Concurrently combines the items in the {@link Collection} using the given {@link Reducer} with the number of 
+     * threads determined by {@code Runtime.getRuntime().availableProcessors()}.
+     * 
+     * @see #reduce(Collection, Object, Reducer, int)
+     */
+    public static <T> T reduce(Collection<? extends T> elements, final T identity, final Reducer<T> reducer) throws InterruptedException {
+        return reduce(elements, identity, reducer, ALL_CORES);
+    }
+    
+    /**
+     * Concurrently gathers the items in the {@link Collection} into a container described by the given 
+     * {@link Aggregation}. Each thread accumulates a range of the collection into a container of its own, so no 
+     * synchronization takes place while accumulating, and the containers are combined in pairs, in order.
+     * 
+     * @param <T> The type of element in the {@link Collection} to collect
+     * @param <A> The type of container
+     * @param elements The {@link Collection} of elements to collect concurrently
+     * @param aggregation Describes how to create, fill and combine containers
+     * @param numThreads The number of threads to use
+     * @return a container holding every item
+     * @throws InterruptedException if the main thread is interrupted while waiting for the collection to finish processing
+     */
+    public static <T, A> A collect(Collection<? extends T> elements, final Aggregation<? super T, A> aggregation, int numThreads) throws InterruptedException {
+        final List<? extends T> indexed = indexed(elements);
+        if (indexed.isEmpty()) {
+            return aggregation.newContainer();
+        }
+        int parallelism = parallelism(indexed.size(), numThreads);
+        return invoke(pool(parallelism), new RangeTask<A>(0, indexed.size(), threshold(indexed.size(), parallelism)) {
+            @Override
+            A leaf(int from, int to) {
+                A container = aggregation.newContainer();
+                for (int i = from; i < to; i++) {
+                    aggregation.accumulate(container, indexed.get(i));
+                }
+                return container;
+            }
+
+            @Override
+            A combine(A left, A right) {
+                return aggregation.combine(left, right);
+            }
+        });
+    }
+    
+    /**
+     * Concurrently gathers the items in the {@link Collection} into a container described by the given 
+     * {@link Aggregation} with the number of threads determined by {@code Runtime.getRuntime().availableProcessors()}.
+     * 
+     * @see #collect(Collection, Aggregation, int)
+     */
+    public static <T, A> A collect(Collection<? extends T> elements, final Aggregation<? super T, A> aggregation) throws InterruptedException {
+        return collect(elements, aggregation, ALL_CORES);
+    }
+    
+    /**
+     * Returns a {@link Mapper} which remembers the results of the given one, for use by many threads at once. When 
+     * elements passed to a {@code Parallel} method share expensive keys (e.g. lookups against a remote service), 
+     * each key is then computed once, and concurrent calls for the same key wait for that one computation:
+     * <pre>
+     * {@code
+     * final Memoizer<String, Company> companies = Parallel.memoize(lookup, 10000);
+     * Parallel.forEach(orders, new Operation<Order>() {
+     *     public void perform(Order order) {
+     *         enrich(order, companies.map(order.getCompanyId()));
+     *     }
+     * });
+     * }
+     * </pre>
+     * 
+     * @param <K> The type of key
+     * @param <V> The type of result
+     * @param mapper The {@link Mapper} whose results to remember
+     * @param maxSize The number of results to remember, beyond which the least recently used are forgotten
+     * @return a thread-safe memoizing mapper, which also reports hit and miss counts
+     */
+    public static <K, V> Memoizer<K, V> memoize(Mapper<? super K, ? extends V> mapper, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        return new Memoizer<K, V>(mapper, maxSize);
+    }
+    
+    /**
+     * Returns the collection itself if it is a {@link RandomAccess} list, otherwise a list view of a copy of it.
+     */
+    private static <E> List<? extends E> indexed(Collection<? extends E> elements) {
+        if (elements instanceof List && elements instanceof RandomAccess) {
+            return (List<? extends E>) elements;
+        }
+        return (List<? extends E>) Arrays.asList(elements.toArray());
+    }
+    
+    private static int parallelism(int size, int numThreads) {
+        return Math.max(1, Math.min(numThreads, size));
+    }
+    
+    private static int threshold(int size, int parallelism) {
+        return Math.max(1, size / (parallelism * LEAVES_PER_THREAD));
+    }
+    
+    /**
+     * @return the number of threads to process {@code size} elements on, which is 1 if there are no more than 
+     * {@code inlineThreshold}
+     */
+    private static int parallelism(int size, int numThreads, int inlineThreshold) {
+        return size <= inlineThreshold ? 1 : parallelism(size, numThreads);
+    }
+    
+    private static <E> void forEachIndexed(final List<? extends E> elements, final Operation<? super E> operation, int numThreads, Executor executor, int inlineThreshold, final Failures failures) throws InterruptedException {
+        int parallelism = parallelism(elements.size(), numThreads, inlineThreshold);
+        int threshold = threshold(elements.size(), parallelism);
+        if (executor instanceof ForkJoinPool && parallelism > 1) {
+            invoke((ForkJoinPool) executor, new RangeAction<E>(elements, operation, 0, elements.size(), threshold, failures));
+            return;
+        }
+        forEachChunk(parallelism, new Chunker.Fixed(elements.size(), threshold), executor, failures, new Leaf() {
+            @Override
+            public void run(int from, int to) {
+                perform(elements, operation, from, to, failures);
+            }
+        });
+    }
+    
+    private static <E> void forEachScheduled(final List<? extends E> elements, final Operation<? super E> operation, Options options, final Failures failures) throws InterruptedException {
+        int size = elements.size();
+        int parallelism = parallelism(size, options.getNumThreads(), options.getInlineThreshold());
+        int chunkSize = options.getChunkSize() > 0 ? options.getChunkSize() : threshold(size, parallelism);
+        Chunker chunker = options.getSchedule().newChunker(size, parallelism, chunkSize);
+        forEachChunk(parallelism, chunker, options.getExecutor(), failures, new Leaf() {
+            @Override
+            public void run(int from, int to) {
+                perform(elements, operation, from, to, failures);
+            }
+        });
+    }
+    
+    /**
+     * Runs {@code parallelism} workers, each of which claims chunks from the chunker until none remain or the call is 
+     * stopped by a failure. The calling thread is the first worker, so only {@code parallelism - 1} run on the 
+     * executor, and with a parallelism of 1 every chunk is run inline, without handing anything to another thread.
+     * @param executor the executor to run the other workers on, or {@code null} to use a shared pool
+     */
+    private static void forEachChunk(int parallelism, final Chunker chunker, Executor executor, final Failures failures, final Leaf leaf) throws InterruptedException {
+        CountDownLatch done = null;
+        if (parallelism > 1) {
+            if (executor == null) {
+                executor = pool(parallelism);
+            }
+            final CountDownLatch helpers = new CountDownLatch(parallelism - 1);
+            for (int i = 1; i < parallelism; i++) {
+                final Chunker.Worker worker = new Chunker.Worker(i);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runChunks(chunker, worker, failures, leaf);
+                        } finally {
+                            helpers.countDown();
+                        }
+                    }
+                });
+            }
+            done = helpers;
+        }
+        boolean finished = false;
+        try {
+            runChunks(chunker, new Chunker.Worker(0), failures, leaf);
+            finished = true;
+        } finally {
+            if (!finished) {
+                chunker.cancel();
+            }
+        }
+        if (done != null) {
+            try {
+                done.await();
+            } catch (InterruptedException ex) {
+                chunker.cancel();
+                throw ex;
+            }
+        }
+    }
+    
+    private static void runChunks(Chunker chunker, Chunker.Worker worker, Failures failures, Leaf leaf) {
+        while (!failures.isStopped() && chunker.next(worker)) {
+            leaf.run(worker.from, worker.to);
+        }
+    }
+    
+    /**
+     * Performs the operation on the elements in the index range {@code [from, to)}, stopping early if the call is 
+     * stopped by a failure.
+     */
+    private static <E> void perform(List<? extends E> elements, Operation<? super E> operation, int from, int to, Failures failures) {
+        for (int i = from; i < to && !failures.isStopped(); i++) {
+            failures.perform(operation, elements.get(i));
+        }
+    }
+    
+    private static void operationFailed(RuntimeException ex) {
+        Logger.getLogger(Parallel.class.getName()).log(Level.SEVERE, "Operation threw exception", ex);
+    }
+    
+    /**
+     * Runs the task in the given pool and waits for it to complete. Unlike {@link ForkJoinPool#invoke}, the wait 
+     * may be interrupted.
+     * @return the result of the task
+     */
+    private static <R> R invoke(ForkJoinPool pool, ForkJoinTask<R> task) throws InterruptedException {
+        pool.execute(task);
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            task.cancel(true);
+            throw ex;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    /**
+     * Returns a long-lived pool with the given parallelism, so repeated calls do not pay for thread creation.
+     */
+    private static ForkJoinPool pool(int parallelism) {
+        ForkJoinPool pool = POOLS.get(parallelism);
+        if (pool == null) {
+            ForkJoinPool created = new ForkJoinPool(parallelism);
+            pool = POOLS.putIfAbsent(parallelism, created);
+            if (pool == null) {
+                pool = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        return pool;
+    }
+    
     private Parallel() {}
     
-    private static class CollectionProducer<E> implements Producer<E> {
+    /**
+     * The work done on one chunk of an index range.
+     */
+    private interface Leaf {
+        
+        void run(int from, int to);
+        
+    }
+    
+    /**
+     * Performs an {@link Operation} on the elements of a {@link RandomAccess} list in the index range 
+     * {@code [from, to)}, splitting the range in half until it is no larger than the threshold.
+     */
+    private static class RangeAction<E> extends RecursiveAction {
+        
+        private final List<? extends E> elements;
+        private final Operation<? super E> operation;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final Failures failures;
+
+        RangeAction(List<? extends E> elements, Operation<? super E> operation, int from, int to, int threshold, Failures failures) {
+            this.elements = elements;
+            this.operation = operation;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.failures = failures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                perform(elements, operation, from, to, failures);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeAction<E>(elements, operation, from, middle, threshold, failures), 
+                    new RangeAction<E>(elements, operation, middle, to, threshold, failures));
+        }
+        
+    }
+    
+    /**
+     * Computes a result over the index range {@code [from, to)} by splitting the range in half until it is no larger 
+     * than the threshold, computing each leaf range on its own and combining the results of adjacent ranges.
+     */
+    private abstract static class RangeTask<R> extends RecursiveTask<R> {
+        
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        RangeTask(int from, int to, int threshold) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+        
+        abstract R leaf(int from, int to);
+        
+        /**
+         * Combines the results of adjacent ranges. By default, discards them, for tasks which only have side effects.
+         */
+        R combine(R left, R right) {
+            return null;
+        }
+
+        @Override
+        protected R compute() {
+            return compute(from, to);
+        }
+        
+        private R compute(int from, int to) {
+            if (to - from <= threshold) {
+                return leaf(from, to);
+            }
+            final int middle = from + (int) (((long) to - from) >>> 1);
+            final int start = from;
+            RecursiveTask<R> left = new RecursiveTask<R>() {
+                @Override
+                protected R compute() {
+                    return RangeTask.this.compute(start, middle);
+                }
+            };
+            left.fork();
+            R right = compute(middle, to);
+            return combine(left.join(), right);
+        }
+        
+    }
+    
+    private static class IteratorProducer<E> implements Producer<E> {
 
-        private final Iterable<E> elements;
+        private final Iterator<? extends E> elements;
         
-        public CollectionProducer(Iterable<? extends E> elements) {
-            this.elements = (Iterable<E>) elements;
+        public IteratorProducer(Iterator<? extends E> elements) {
+            this.elements = elements;
         }
         
         @Override
         public void produce(Production<E> production) {
             try {
-                for (E element : elements) {
-                    production.put(element);
+                while (elements.hasNext()) {
+                    production.put(elements.next());
                 }
             } catch (InterruptedException ex) {
                 Logger.getLogger(Parallel.class.getName()).log(Level.SEVERE, "Producer interrupted", ex);
@@ -92,15 +1005,17 @@ public class Parallel {
     private static class OperationConsumer<E> implements Consumer<E> {
 
         private final Operation<? super E> operation;
+        private final Failures failures;
 
-        public OperationConsumer(Operation<? super E> operation) {
+        public OperationConsumer(Operation<? super E> operation, Failures failures) {
             this.operation = operation;
+            this.failures = failures;
         }
         
         @Override
         public void consume(Iterable<E> elements) {
             for (E element : elements) {
-                operation.perform(element);
+                failures.perform(operation, element);
             }
         }
         
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+/**
+ * Defines an associative function which combines two items into one.
+ * @author Alan Smith
+ */
+public interface Reducer<T> {
+    
+    /**
+     * Combines two items. Must be associative, i.e. {@code reduce(reduce(a, b), c)} must equal 
+     * {@code reduce(a, reduce(b, c))}, since the items are combined in an unspecified grouping (though always in 
+     * their original order).
+     * @param left the first item
+     * @param right the second item
+     * @return the combination of the two items
+     */
+    T reduce(T left, T right);
+
+}
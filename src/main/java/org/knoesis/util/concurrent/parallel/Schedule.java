@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+/**
+ * How {@link Parallel#forEach(java.util.Collection, Operation, Options)} divides the elements among its threads.
+ * @author Alan Smith
+ * @see Options.Builder#setSchedule
+ */
+public enum Schedule {
+    
+    /**
+     * The calling thread and the other threads repeatedly claim the next chunk of indices from a shared counter, with 
+     * chunks sized to give each thread several, so threads which finish early take on more of the range. Only if the 
+     * executor is a {@link java.util.concurrent.ForkJoinPool} is the range split recursively across it, for its 
+     * workers to steal. Elements of a collection which is not a {@link java.util.RandomAccess} list are first copied 
+     * into an array, which costs a pass over them and an array of their size. This is the default.
+     */
+    WORK_STEALING,
+    
+    /**
+     * Each thread processes one contiguous block of {@code size / numThreads} elements. Has the least overhead, but 
+     * finishes only as fast as the slowest block, so suits operations whose cost does not vary between elements.
+     */
+    STATIC,
+    
+    /**
+     * Threads repeatedly claim the next chunk of {@link Options.Builder#setChunkSize chunkSize} elements until none 
+     * remain.
+     */
+    FIXED_CHUNK,
+    
+    /**
+     * Threads repeatedly claim the next {@code remaining / numThreads} elements, but no fewer than 
+     * {@link Options.Builder#setChunkSize chunkSize}, so chunks start large and shrink as the end approaches 
+     * (as OpenMP's {@code schedule(guided)}).
+     */
+    GUIDED,
+    
+    /**
+     * Each thread measures how long its elements take to process and sizes its next chunk to take roughly 
+     * {@value Chunker#ADAPTIVE_TARGET_NANOS}ns, starting from a single element. Chunks never exceed what 
+     * {@link #GUIDED} would claim, so the end stays balanced. Suits operations whose cost is unknown or varies 
+     * widely between elements.
+     */
+    ADAPTIVE;
+    
+    /**
+     * Creates a chunker which divides {@code size} elements among {@code parallelism} workers in this way.
+     * @param chunkSize the chunk size or minimum chunk size, where applicable
+     */
+    Chunker newChunker(int size, int parallelism, int chunkSize) {
+        switch (this) {
+            case STATIC:
+                return new Chunker.Static(size, parallelism);
+            case GUIDED:
+                return new Chunker.Guided(size, parallelism, chunkSize);
+            case ADAPTIVE:
+                return new Chunker.Adaptive(size, parallelism);
+            default:
+                return new Chunker.Fixed(size, chunkSize);
+        }
+    }
+
+}
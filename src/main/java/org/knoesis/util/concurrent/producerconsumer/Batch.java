@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * A group of elements which travels through the work queue as a single entry.
+ * @author Alan Smith
+ */
+final class Batch<E> {
+    
+    private final Object[] elements;
+    private int size = 0;
+    private long started;
+    
+    Batch(int capacity) {
+        this.elements = new Object[capacity];
+    }
+    
+    void add(E element) {
+        if (size == 0) {
+            started = System.nanoTime();
+        }
+        elements[size++] = element;
+    }
+    
+    E get(int index) {
+        return (E) elements[index];
+    }
+    
+    int size() {
+        return size;
+    }
+    
+    boolean isEmpty() {
+        return size == 0;
+    }
+    
+    boolean isFull() {
+        return size == elements.length;
+    }
+    
+    /**
+     * @return the value of {@link System#nanoTime()} when the first element was added
+     */
+    long started() {
+        return started;
+    }
+
+}
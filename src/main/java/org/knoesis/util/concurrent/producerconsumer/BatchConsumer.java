@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.List;
+
+/**
+ * A consumer which receives the elements produced in batches, e.g. to write them to a database with a single bulk 
+ * insert. Added with {@link ProducerConsumer.Builder#addBatchConsumer}, alongside or instead of {@link Consumer}s.
+ * <br/><br/>Typical implementation:<br/><br/>
+ * <pre>
+ * {@code
+ * public class RowWriter implements BatchConsumer<Row> {
+ *      public void consume(List<Row> rows) {
+ *          insertAll(rows);
+ *      }
+ *      ...
+ * }
+ * }
+ * </pre>
+ * @author Alan Smith
+ */
+public interface BatchConsumer<E> {
+    
+    /**
+     * Consumes a batch of elements. Called repeatedly, on the same thread, until every element has been consumed.
+     * @param batch between 1 and the maximum batch size elements, in the order they were taken from the work queue. 
+     * The list belongs to the consumer, which may keep it.
+     */
+    void consume(List<E> batch);
+
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Runs a {@link BatchConsumer} as a {@link Consumer}, filling each batch directly from the work queue.
+ * @author Alan Smith
+ */
+class BatchConsumerAdapter<E> implements Consumer<E> {
+    
+    /**
+     * Largest capacity to preallocate for a batch, so that a generous maximum batch size does not cost memory when 
+     * batches are usually small.
+     */
+    private static final int MAX_INITIAL_CAPACITY = 1024;
+    
+    private final BatchConsumer<E> consumer;
+    private final int maxBatchSize;
+    private final long maxWaitNanos;
+
+    BatchConsumerAdapter(BatchConsumer<E> consumer, int maxBatchSize, long maxWaitNanos) {
+        this.consumer = consumer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    @Override
+    public void consume(Iterable<E> consumables) {
+        Consumables<E> view = (Consumables<E>) consumables;
+        Iterator<E> iterator = view.iterator();
+        while (true) {
+            List<E> batch = new ArrayList<E>(Math.min(maxBatchSize, MAX_INITIAL_CAPACITY));
+            if (!view.drain(iterator, batch, maxBatchSize, maxWaitNanos)) {
+                return;
+            }
+            consumer.consume(batch);
+        }
+    }
+
+}
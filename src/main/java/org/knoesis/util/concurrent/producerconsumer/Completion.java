@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A handle on a {@link ProducerConsumer} which has been started by {@link ProducerConsumer#beginAsync()}. Reports 
+ * progress while it runs, and completes once every producer and consumer has finished, or it has been cancelled and 
+ * every producer and consumer has stopped.<br/><br/>Example usage:<br/><br/>
+ * <pre>
+ * {@code
+ *  Completion completion = pc.beginAsync();
+ *  completion.toCompletionStage().thenRun(new Runnable() {
+ *      public void run() {
+ *          System.out.println("Consumed " + completion.getConsumed());
+ *      }
+ *  });
+ * }
+ * </pre>
+ * @author Alan Smith
+ */
+public final class Completion implements Future<Void> {
+    
+    private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    private final LongAdder produced = new LongAdder();
+    private final LongAdder consumed = new LongAdder();
+    private final BlockingQueue<Object> queue;
+    private final Set<Thread> threads = new HashSet<Thread>();
+    private final Queue<Throwable> failures = new ConcurrentLinkedQueue<Throwable>();
+    private volatile boolean stopped = false;
+    private volatile boolean cancelled = false;
+
+    Completion(BlockingQueue<Object> queue) {
+        this.queue = queue;
+    }
+    
+    /**
+     * @return the number of elements handed to the work queue so far. Elements held in a partial batch are not 
+     * counted until the batch is handed off.
+     */
+    public long getProduced() {
+        return produced.sum();
+    }
+    
+    /**
+     * @return the number of elements consumed so far
+     */
+    public long getConsumed() {
+        return consumed.sum();
+    }
+    
+    /**
+     * @return the number of entries currently waiting in the work queue
+     */
+    public int getQueued() {
+        return queue.size();
+    }
+    
+    /**
+     * Stops processing. Producers' {@link Production#put} calls throw {@code InterruptedException}, consumers' 
+     * iteration ends after the element they are processing, and they discard the elements left in the work queue. 
+     * The threads of producers and consumers which are running are interrupted. This handle completes once they have 
+     * all stopped.
+     * @param mayInterruptIfRunning ignored; running producers and consumers are always interrupted
+     * @return false if processing had already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (future.isDone()) {
+            return false;
+        }
+        cancelled = true;
+        stop();
+        return true;
+    }
+    
+    /**
+     * Stops processing without cancelling it, e.g. because no consumer remains to take the producers' elements.
+     */
+    void stop() {
+        stopped = true;
+        synchronized (threads) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+    
+    /**
+     * @return whether {@link #cancel} was called before processing completed
+     */
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return future.isDone();
+    }
+    
+    /**
+     * Waits until processing completes, whether normally, by cancellation or by failure.
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public void await() throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException ex) {
+            // failed
+        } catch (CancellationException ex) {
+            // cancelled
+        }
+    }
+
+    /**
+     * Waits until processing completes.
+     * @return {@code null}
+     * @throws CancellationException if processing was cancelled
+     * @throws ExecutionException if processing failed under {@link FailurePolicy#FAIL_FAST} or 
+     * {@link FailurePolicy#COLLECT}, with a {@link ProcessingException} as its cause
+     */
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        return future.get();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return future.get(timeout, unit);
+    }
+    
+    /**
+     * Returns a stage which completes when processing does, to which callbacks may be attached. If processing was 
+     * cancelled, the stage completes exceptionally with a {@link CancellationException}, and if it failed, with a 
+     * {@link ProcessingException}. Completing the returned stage has no effect on processing.
+     * @return a new {@code CompletionStage}
+     */
+    public CompletionStage<Void> toCompletionStage() {
+        return future.thenApply(Function.<Void>identity());
+    }
+    
+    /**
+     * @return whether processing has been cancelled, has failed fast or has no consumers left, so producers and 
+     * consumers should stop
+     */
+    boolean isStopped() {
+        return stopped;
+    }
+    
+    /**
+     * Records a failure, which is rethrown on completion, and optionally stops processing. Failures after processing
+     * has stopped are ignored.
+     */
+    void failed(Throwable failure, boolean stop) {
+        if (stopped) {
+            // e.g. caused by the interruption of a stopping consumer
+            return;
+        }
+        failures.add(failure);
+        if (stop && !stopped) {
+            stop();
+        }
+    }
+    
+    void produced(int count) {
+        produced.add(count);
+    }
+    
+    void consumed() {
+        consumed.increment();
+    }
+    
+    /**
+     * Records that the calling thread is running a producer or consumer, so that it is interrupted on cancellation.
+     */
+    void enter() {
+        synchronized (threads) {
+            threads.add(Thread.currentThread());
+        }
+    }
+    
+    /**
+     * Records that the calling thread has finished running a producer or consumer, clearing any interrupt caused by 
+     * cancellation so that it does not leak into the executor's next task.
+     */
+    void exit() {
+        synchronized (threads) {
+            threads.remove(Thread.currentThread());
+            if (stopped) {
+                Thread.interrupted();
+            }
+        }
+    }
+    
+    void complete() {
+        if (!failures.isEmpty()) {
+            future.completeExceptionally(new ProcessingException(new ArrayList<Throwable>(failures)));
+        } else if (cancelled) {
+            future.completeExceptionally(new CancellationException());
+        } else {
+            future.complete(null);
+        }
+    }
+
+}
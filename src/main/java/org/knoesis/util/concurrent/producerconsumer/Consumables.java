@@ -16,39 +16,360 @@
 
 package org.knoesis.util.concurrent.producerconsumer;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
 
 /**
- * A blocking Iterable of consumable items produced by the producer.
+ * A blocking Iterable of consumable items produced by the producer. Each call to {@link #iterator()} returns a new 
+ * iterator over the work queue, so a consumer may hand this Iterable to several threads.
  * @author Alan Smith
  */
 class Consumables<E> implements Iterable<E> {
     
-    private final BlockingQueue<Item<E>> queue;
+    private final BlockingQueue<Object> queue;
+    private final Metrics metrics;
+    private final int consumer;
+    private final ElasticConsumers<?> elastic;
+    private final boolean retirable;
+    private final Completion completion;
+    private final WeightBudget budget;
+    
+    /**
+     * Entries set aside from the iterators of a consumer which threw, and elements to deliver again, which the 
+     * restarted consumer's iterators take before any from the work queue.
+     */
+    private final Deque<Object> leftovers = new ConcurrentLinkedDeque<Object>();
+    
+    /**
+     * The iterators handed out since the consumer last started which have not yet been exhausted.
+     */
+    private final List<ConsumableIterator> iterators = new ArrayList<ConsumableIterator>();
+    private volatile boolean retired = false;
 
-    Consumables(BlockingQueue<Item<E>> queue) {
+    Consumables(BlockingQueue<Object> queue) {
+        this(queue, null, 0, null, false, null, null);
+    }
+
+    /**
+     * @param metrics the metrics to update, or {@code null}
+     * @param consumer the index of the consumer which iterates this instance
+     * @param elastic the elastic consumer pool, or {@code null} if there is none. If set, the single 
+     * {@link ProducerConsumer#DONE} marker is put back for the next consumer after it is taken.
+     * @param retirable whether the consumer may be retired by the elastic consumer pool when idle
+     * @param completion the handle to report progress to and check for cancellation, or {@code null}
+     * @param budget the weight budget to release each element's weight to, or {@code null}
+     */
+    Consumables(BlockingQueue<Object> queue, Metrics metrics, int consumer, ElasticConsumers<?> elastic, boolean retirable, Completion completion, WeightBudget budget) {
         this.queue = queue;
+        this.metrics = metrics;
+        this.consumer = consumer;
+        this.elastic = elastic;
+        this.retirable = retirable;
+        this.completion = completion;
+        this.budget = budget;
+    }
+    
+    /**
+     * @return whether iteration ended because the consumer was retired by the elastic consumer pool
+     */
+    boolean isRetired() {
+        return retired;
+    }
+    
+    /**
+     * Fills the list with the next elements, as for a {@link BatchConsumer}: waits for the first, adds whatever is 
+     * already queued, draining the work queue in bulk, and then waits for more until the list holds 
+     * {@code maxSize} elements or {@code maxWaitNanos} have passed since the first arrived. The batch is then in 
+     * flight until the next call, even if it is the last: the iterator stays registered for {@link #recover()} 
+     * until then. A batch on which the consumer threw is delivered again as it was.
+     * @param iterator an iterator returned by {@link #iterator()}, used for every batch
+     * @param batch an empty list to fill
+     * @return false if there are no more elements, in which case the list is left empty
+     */
+    boolean drain(Iterator<E> iterator, List<E> batch, int maxSize, long maxWaitNanos) {
+        ConsumableIterator it = (ConsumableIterator) iterator;
+        it.lastBatch = null;
+        if (!it.hasNext()) {
+            it.end();
+            return false;
+        }
+        if (it.delivery != null && it.delivery.whole) {
+            batch.addAll(it.delivery.elements);
+            it.index = batch.size();
+            it.lastBatch = it.delivery.elements;
+            it.attempts = it.delivery.attempts + 1;
+            it.inFlight = true;
+            return true;
+        }
+        batch.add(it.next());
+        long deadline = System.nanoTime() + maxWaitNanos;
+        try {
+            while (batch.size() < maxSize) {
+                if (!it.hasBuffered()) {
+                    if (queue.drainTo(it.drained, maxSize - batch.size()) == 0) {
+                        long remaining = deadline - System.nanoTime();
+                        Object entry = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                        if (entry == null) {
+                            break;
+                        }
+                        it.drained.add(entry);
+                    }
+                }
+                if (!it.hasNext()) {
+                    break;
+                }
+                batch.add(it.next());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        it.lastBatch = new ArrayList<E>(batch);
+        it.inFlight = true;
+        it.attempts = 1;
+        if (it.exhausted) {
+            // reaching the end-of-stream marker ended the iteration, but the batch is in flight until the next call
+            synchronized (iterators) {
+                iterators.add(it);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Called once the consumer has thrown, before it is restarted. Ends the iteration of each of its iterators, 
+     * setting aside the elements they had taken from the work queue but not yet returned, so that the restarted 
+     * consumer receives them first.
+     * @return the element, or the batch of a {@link BatchConsumer}, which each iterator had returned last and had 
+     * not yet been asked for another, i.e. the work in flight when the consumer threw
+     */
+    List<Delivery<E>> recover() {
+        List<Delivery<E>> inFlight = new ArrayList<Delivery<E>>();
+        synchronized (iterators) {
+            for (ConsumableIterator it : iterators) {
+                if (it.inFlight) {
+                    inFlight.add(it.lastBatch != null 
+                            ? new Delivery<E>(it.lastBatch, it.attempts, true) 
+                            : new Delivery<E>(Collections.singletonList(it.last), it.attempts, false));
+                }
+                it.setAside();
+            }
+            iterators.clear();
+        }
+        return inFlight;
+    }
+    
+    /**
+     * Delivers work which was in flight when the consumer threw to the restarted consumer, before any other.
+     */
+    void redeliver(Delivery<E> delivery) {
+        leftovers.addFirst(delivery);
     }
     
     @Override
     public Iterator<E> iterator() {
-        return new ConsumableIterator();
+        ConsumableIterator it = new ConsumableIterator();
+        synchronized (iterators) {
+            iterators.add(it);
+        }
+        return it;
+    }
+    
+    /**
+     * Elements which were in flight when a consumer threw.
+     */
+    static final class Delivery<E> {
+        
+        final List<E> elements;
+        
+        /**
+         * The number of times the elements have been delivered
+         */
+        final int attempts;
+        
+        /**
+         * Whether the elements are the batch of a {@link BatchConsumer}, to be delivered again as a whole
+         */
+        final boolean whole;
+
+        Delivery(List<E> elements, int attempts, boolean whole) {
+            this.elements = elements;
+            this.attempts = attempts;
+            this.whole = whole;
+        }
+        
     }
     
     private class ConsumableIterator implements Iterator<E> {
         
-        Item<E> current = null;
+        Object current = null;
+        Batch<E> batch = null;
+        Delivery<E> delivery = null;
+        int index = 0;
+        E last = null;
+        List<E> lastBatch = null;
+        final ArrayDeque<Object> drained = new ArrayDeque<Object>();
+        boolean inFlight = false;
+        int attempts = 0;
+        
+        /**
+         * Whether this iterator took the consumer's end-of-stream marker, which is set aside again if the consumer 
+         * throws on the last batch
+         */
+        boolean exhausted = false;
+        
+        /**
+         * Whether the current entry was taken from the leftovers rather than the work queue
+         */
+        boolean leftover = false;
 
         @Override
         public boolean hasNext() {
+            inFlight = false;
+            if (current == ProducerConsumer.DONE) {
+                return false;
+            }
+            if (completion != null && completion.isStopped()) {
+                return discard();
+            }
+            if (batch != null && index < batch.size()) {
+                return true;
+            }
+            if (delivery != null && index < delivery.elements.size()) {
+                return true;
+            }
+            batch = null;
+            delivery = null;
             try {
-                current = queue.take();
+                current = take();
             } catch (InterruptedException ex) {
-                return false;
+                return completion != null && completion.isStopped() ? discard() : end();
             }
-            return current != ProducerConsumer.DONE;
+            if (current instanceof Batch) {
+                batch = (Batch<E>) current;
+                index = 0;
+            } else if (current instanceof Delivery) {
+                delivery = (Delivery<E>) current;
+                index = 0;
+            }
+            if (current == ProducerConsumer.DONE) {
+                exhausted = !retired;
+                if (elastic != null && !retired && !leftover) {
+                    ProducerConsumer.putUninterruptibly(queue, ProducerConsumer.DONE);
+                }
+                // only the end-of-stream markers of other consumers can follow this one
+                while (!drained.isEmpty()) {
+                    ProducerConsumer.putUninterruptibly(queue, drained.poll());
+                }
+                return end();
+            }
+            return true;
+        }
+        
+        /**
+         * Ends iteration, so that the iterator no longer needs to be recovered if the consumer throws.
+         * @return false
+         */
+        boolean end() {
+            current = ProducerConsumer.DONE;
+            synchronized (iterators) {
+                iterators.remove(this);
+            }
+            return false;
+        }
+        
+        /**
+         * Ends iteration once processing has stopped, discarding the entries left for this consumer. This is done by 
+         * the consumers rather than by the thread which stops processing, as a single-consumer queue may only be 
+         * taken from by its consumer.
+         * @return false
+         */
+        private boolean discard() {
+            queue.clear();
+            leftovers.clear();
+            drained.clear();
+            return end();
+        }
+        
+        /**
+         * @return whether {@link #hasNext()} can answer without taking from the work queue
+         */
+        boolean hasBuffered() {
+            return (batch != null && index < batch.size()) || (delivery != null && index < delivery.elements.size()) 
+                    || !drained.isEmpty();
+        }
+        
+        /**
+         * Ends iteration, moving the entries taken from the work queue but not yet returned to the leftovers.
+         */
+        void setAside() {
+            if (batch != null && index < batch.size()) {
+                Batch<E> rest = new Batch<E>(batch.size() - index);
+                while (index < batch.size()) {
+                    rest.add(batch.get(index++));
+                }
+                leftovers.add(rest);
+            } else if (delivery != null && index < delivery.elements.size()) {
+                leftovers.add(new Delivery<E>(delivery.elements.subList(index, delivery.elements.size()), 
+                        delivery.attempts, false));
+            }
+            for (Object entry : drained) {
+                if (entry == ProducerConsumer.DONE) {
+                    // another consumer's end-of-stream marker
+                    ProducerConsumer.putUninterruptibly(queue, entry);
+                } else {
+                    leftovers.add(entry);
+                }
+            }
+            drained.clear();
+            if (exhausted) {
+                leftovers.add(ProducerConsumer.DONE);
+            }
+            batch = null;
+            delivery = null;
+            current = ProducerConsumer.DONE;
+        }
+
+        private Object take() throws InterruptedException {
+            leftover = false;
+            if (!drained.isEmpty()) {
+                return drained.poll();
+            }
+            Object entry = leftovers.poll();
+            if (entry != null) {
+                leftover = true;
+                return entry;
+            }
+            if (metrics == null && !retirable) {
+                return queue.take();
+            }
+            entry = queue.poll();
+            if (entry != null) {
+                return entry;
+            }
+            long start = System.nanoTime();
+            if (retirable) {
+                while ((entry = queue.poll(elastic.idleTimeoutNanos(), TimeUnit.NANOSECONDS)) == null) {
+                    if (elastic.tryRetire()) {
+                        retired = true;
+                        entry = ProducerConsumer.DONE;
+                        break;
+                    }
+                }
+            } else {
+                entry = queue.take();
+            }
+            if (metrics != null) {
+                metrics.consumerBlocked(System.nanoTime() - start);
+            }
+            return entry;
         }
 
         @Override
@@ -56,7 +377,28 @@ class Consumables<E> implements Iterable<E> {
             if (current == ProducerConsumer.DONE) {
                 throw new NoSuchElementException();
             }
-            return current.get();
+            inFlight = true;
+            if (delivery != null) {
+                attempts = delivery.attempts + 1;
+                last = delivery.elements.get(index++);
+                return last;
+            }
+            attempts = 1;
+            if (metrics != null) {
+                metrics.consumed(consumer);
+            }
+            if (completion != null) {
+                completion.consumed();
+            }
+            if (batch != null) {
+                last = batch.get(index++);
+            } else {
+                last = current == ProducerConsumer.NULL ? null : (E) current;
+            }
+            if (budget != null && last != null) {
+                budget.release(last);
+            }
+            return last;
         }
 
         @Override
@@ -38,6 +38,11 @@ public interface Consumer<E> {
      * This method should consume objects by iterating the provided 
      * {@link Iterable} instance.
      * @param consumables A blocking {@code Iterable} view of the work queue.
+     * Each call to its {@code iterator()} method returns a new iterator, so
+     * the view may be shared with other threads, each iterating on its own,
+     * unless the queue is a single-consumer ring buffer, is partitioned, or
+     * uses work stealing; those views must be iterated by one thread at a
+     * time.
      */
     void consume(Iterable<E> consumables);
     
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * Creates {@link Consumer}s on demand for a {@link ProducerConsumer} whose number of consumers grows and shrinks 
+ * with its backlog. See {@link ProducerConsumer.Builder#setConsumerFactory}.
+ * @author Alan Smith
+ */
+public interface ConsumerFactory<E> {
+    
+    /**
+     * Returns a consumer to run on a newly added thread. May return the same instance each time if its 
+     * {@code consume()} method is thread safe.
+     * @return a consumer
+     */
+    Consumer<? super E> newConsumer();
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * Receives the elements which could not be processed after retrying. See 
+ * {@link ProducerConsumer.Builder#setRetries}.
+ * @author Alan Smith
+ */
+public interface DeadLetterSink<E> {
+    
+    /**
+     * Accepts an element which failed on every attempt, e.g. to write it to a file for inspection. May be called 
+     * concurrently from several threads.
+     * @param element the element which could not be processed
+     * @param cause the exception thrown by the last attempt
+     */
+    void deadLetter(E element, Exception cause);
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * Bookkeeping for the consumers added and retired by a {@link ProducerConsumer} in elastic mode.
+ * @author Alan Smith
+ */
+final class ElasticConsumers<E> {
+    
+    private final ConsumerFactory<E> factory;
+    private final int min;
+    private final int max;
+    private final int scaleUpQueueDepth;
+    private final long idleTimeoutNanos;
+    private int running = 0;
+    private boolean closed = false;
+
+    ElasticConsumers(ConsumerFactory<E> factory, int min, int max, int scaleUpQueueDepth, long idleTimeoutNanos) {
+        this.factory = factory;
+        this.min = min;
+        this.max = max;
+        this.scaleUpQueueDepth = scaleUpQueueDepth;
+        this.idleTimeoutNanos = idleTimeoutNanos;
+    }
+    
+    ConsumerFactory<E> factory() {
+        return factory;
+    }
+    
+    int min() {
+        return min;
+    }
+    
+    int scaleUpQueueDepth() {
+        return scaleUpQueueDepth;
+    }
+    
+    long idleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+    
+    /**
+     * Reserves a place for a new consumer.
+     * @return false if the maximum number of consumers are running, or all consumers have finished
+     */
+    synchronized boolean tryGrow() {
+        if (closed || running >= max) {
+            return false;
+        }
+        running++;
+        return true;
+    }
+    
+    /**
+     * Gives up the place of an idle consumer.
+     * @return false if only the minimum number of consumers are running
+     */
+    synchronized boolean tryRetire() {
+        if (running <= min) {
+            return false;
+        }
+        running--;
+        return true;
+    }
+    
+    /**
+     * Gives up the place of a consumer which finished for any reason other than retirement. Once every consumer has 
+     * finished, no more may be added.
+     * @return true if this was the last consumer running
+     */
+    synchronized boolean exited() {
+        running--;
+        if (running == 0) {
+            closed = true;
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * @return whether all consumers have finished
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * What happens when a {@link Producer} or {@link Consumer} throws an exception.
+ * @author Alan Smith
+ * @see ProducerConsumer.Builder#setFailurePolicy
+ */
+public enum FailurePolicy {
+    
+    /**
+     * The exception is logged. A producer which threw is finished; a consumer which threw is not restarted, so the 
+     * remaining consumers carry on with the rest of the elements. This is the default.
+     */
+    LOG,
+    
+    /**
+     * Processing is stopped at the first exception, as if cancelled, and the exception is rethrown from 
+     * {@link ProducerConsumer#begin()} as the cause of a {@link ProcessingException}.
+     */
+    FAIL_FAST,
+    
+    /**
+     * Processing carries on: a consumer which threw continues with the next element. Once processing has finished, 
+     * every exception is rethrown from {@link ProducerConsumer#begin()} together, in a {@link ProcessingException}.
+     */
+    COLLECT
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * This interface represents a consumer of {@code int}s produced.<br/><br/>Typical implementation:<br/><br/>
+ * <pre>
+ * {@code
+ * public class MyConsumer implements IntConsumer {
+ *      public void consume(IntConsumables consumables) {
+ *          while (consumables.hasNext()) {
+ *              doSomethingWith(consumables.next());
+ *          }
+ *      }
+ * }
+ * }
+ * </pre>
+ * @author Alan Smith
+ * @see Consumer
+ */
+public interface IntConsumer {
+
+    /**
+     * This method should consume values by iterating the provided 
+     * {@link IntConsumables}.
+     * @param consumables A blocking view of the work queue.
+     */
+    void consume(IntConsumables consumables);
+    
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+
+/**
+ * A producer-consumer problem over {@code int} values. Values are held in a preallocated ring buffer of 
+ * {@code int}s, so they are never boxed or wrapped on their way from {@link IntProducer}s to {@link IntConsumer}s.
+ * @author Alan Smith
+ * @see ProducerConsumer
+ */
+public final class IntProducerConsumer extends PrimitiveProducerConsumer<IntProducer, IntConsumer> {
+    
+    private final int[] values;
+    private final IntProduction production;
+
+    private IntProducerConsumer(Builder builder) {
+        super(builder.producers, builder.consumers, builder.bufferSize, builder.executor);
+        this.values = new int[sequencer.capacity()];
+        this.production = new IntProduction(sequencer, values);
+    }
+
+    @Override
+    void produce(IntProducer producer) {
+        producer.produce(production);
+    }
+
+    @Override
+    void consume(IntConsumer consumer) {
+        consumer.consume(new IntConsumables(sequencer, values));
+    }
+    
+    /**
+     * @return a new {@code IntProducerConsumer.Builder} instance
+     */
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+    
+    public static final class Builder {
+        
+        private final Collection<IntProducer> producers = new LinkedList<IntProducer>();
+        private final Collection<IntConsumer> consumers = new LinkedList<IntConsumer>();
+        private int bufferSize = Integer.MAX_VALUE;
+        private Executor executor = ThreadPools.shared();
+        
+        /**
+         * Adds a producer to this instance
+         * @param producer producer to add
+         * @return this
+         */
+        public Builder addProducer(IntProducer producer) {
+            producers.add(producer);
+            return this;
+        }
+        
+        /**
+         * Adds a consumer to this instance
+         * @param consumer consumer to add
+         * @return this
+         */
+        public Builder addConsumer(IntConsumer consumer) {
+            consumers.add(consumer);
+            return this;
+        }
+        
+        /**
+         * Sets the capacity of the ring buffer, which is rounded up to a power of two. Defaults to 
+         * {@value QueueStrategy#DEFAULT_PREALLOCATED_CAPACITY}.
+         * @param bufferSize
+         * @return this
+         */
+        public Builder setBufferSize(int bufferSize) {
+            this.bufferSize = bufferSize;
+            return this;
+        }
+        
+        /**
+         * Runs producers and consumers on the given executor instead of the shared pool. The executor is owned by 
+         * the caller and is not shut down. It must be able to run every producer and consumer at the same time.
+         * @param executor
+         * @return this
+         */
+        public Builder setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+        
+        /**
+         * @return a new instance of {@code IntProducerConsumer} configured by this {@code Builder}.
+         */
+        public IntProducerConsumer build() {
+            return new IntProducerConsumer(this);
+        }
+        
+    }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * A write-only view of the underlying ring buffer of {@code int}s.
+ * @author Alan Smith
+ */
+public class IntProduction {
+    
+    private final RingSequencer sequencer;
+    private final int[] values;
+
+    IntProduction(RingSequencer sequencer, int[] values) {
+        this.sequencer = sequencer;
+        this.values = values;
+    }
+    
+    /**
+     * Places a value into the ring buffer for consumption by 
+     * {@link IntConsumer}s.
+     * @param value the value to produce
+     * @throws InterruptedException if the calling thread is interrupted while 
+     * waiting for an empty slot in the ring buffer.
+     */
+    public void put(int value) throws InterruptedException {
+        long position = sequencer.claimWrite();
+        values[sequencer.index(position)] = value;
+        sequencer.publish(position);
+    }
+
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * Extracts the key by which a partitioned {@link ProducerConsumer} routes an element to a consumer. See 
+ * {@link ProducerConsumer.Builder#setKeyExtractor}.
+ * @author Alan Smith
+ */
+public interface KeyExtractor<E> {
+    
+    /**
+     * Returns the key of an element, e.g. a customer ID. Elements with equal keys, as determined by 
+     * {@link Object#equals} and {@link Object#hashCode}, are always consumed by the same consumer. Called 
+     * concurrently by the producing threads, so implementations must be thread safe.
+     * @param element a non-null element
+     * @return the element's key
+     */
+    Object keyOf(E element);
+
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with power-of-two buckets, so recording is a single atomic increment and percentiles are 
+ * accurate to within a factor of two.
+ * @author Alan Smith
+ */
+final class LatencyHistogram {
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    
+    /**
+     * @param nanos a non-negative duration
+     */
+    void record(long nanos) {
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(Math.max(0, nanos)) & 63);
+    }
+    
+    long count() {
+        long count = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+    
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound on the duration below which the given percentage of recorded durations fall, or 0 if 
+     * none have been recorded
+     */
+    long percentile(double percentile) {
+        long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                return i == 0 ? 0 : i == 63 ? Long.MAX_VALUE : (1L << i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A blocking iterator over the {@code long}s produced by the producers. Each consumer receives its own instance.
+ * @author Alan Smith
+ */
+public class LongConsumables {
+    
+    private final RingSequencer sequencer;
+    private final long[] values;
+    private long next;
+    private boolean hasNext = false;
+
+    LongConsumables(RingSequencer sequencer, long[] values) {
+        this.sequencer = sequencer;
+        this.values = values;
+    }
+    
+    /**
+     * Waits until a value is available or all producers have finished.
+     * @return true if a value is available, false if all values have been consumed or the calling thread was 
+     * interrupted
+     */
+    public boolean hasNext() {
+        if (hasNext) {
+            return true;
+        }
+        long position;
+        try {
+            position = sequencer.claimRead();
+        } catch (InterruptedException ex) {
+            return false;
+        }
+        if (position < 0) {
+            return false;
+        }
+        next = values[sequencer.index(position)];
+        sequencer.release(position);
+        hasNext = true;
+        return true;
+    }
+    
+    /**
+     * @return the next value
+     * @throws NoSuchElementException if all values have been consumed
+     */
+    public long next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        hasNext = false;
+        return next;
+    }
+
+}
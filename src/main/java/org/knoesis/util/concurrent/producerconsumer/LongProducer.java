@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * This interface specifies a producer of {@code long}s to be consumed by the {@link LongConsumer}s.
+ * @author Alan Smith
+ * @see Producer
+ */
+public interface LongProducer {
+    
+    /**
+     * This method should produce values into the provided {@link LongProduction}.
+     * @param production A {@code LongProducer}'s view of the work queue, which may 
+     * only be added to.
+     */
+    void produce(LongProduction production);
+    
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link Producer} of the records in a file, which is memory-mapped rather than read through a stream. Each record 
+ * is produced as a read-only {@link ByteBuffer} slice of the mapping, positioned at the start of the record, so no 
+ * bytes are copied or decoded.<br/><br/>Records are either separated by a delimiter byte (by default {@code '\n'}) 
+ * or, if {@link Builder#setLengthPrefixed} is set, each preceded by its length as a 4-byte big-endian {@code int}.
+ * <br/><br/>A file of delimited records is divided into segments, whose boundaries are moved forward to the start of 
+ * the next record. The same instance may be added to a {@link ProducerConsumer} several times, in which case each of 
+ * the producer threads repeatedly claims and scans the next segment, so the file is read in parallel:
+ * <pre>
+ * {@code
+ * MappedFileProducer producer = MappedFileProducer.newBuilder(Paths.get("records.log")).build();
+ * ProducerConsumer.Builder<ByteBuffer> builder = ProducerConsumer.<ByteBuffer>newBuilder();
+ * for (int i = 0; i < 4; i++) {
+ *     builder.addProducer(producer);
+ * }
+ * }
+ * </pre>
+ * Records are produced in file order within a segment, but segments are scanned concurrently. A file of 
+ * length-prefixed records can only be scanned from its start, so it is read by a single thread. An instance reads 
+ * its file once; later calls to {@link #produce} return immediately.
+ * @author Alan Smith
+ */
+public final class MappedFileProducer implements Producer<ByteBuffer> {
+    
+    /**
+     * Default size of the segments a file is divided into, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    
+    private static final int ALIGN_BUFFER_SIZE = 8192;
+    
+    private final Path path;
+    private final byte delimiter;
+    private final boolean lengthPrefixed;
+    private final int segmentSize;
+    private final AtomicInteger nextSegment = new AtomicInteger();
+
+    private MappedFileProducer(Builder builder) {
+        this.path = builder.path;
+        this.delimiter = builder.delimiter;
+        this.lengthPrefixed = builder.lengthPrefixed;
+        this.segmentSize = builder.segmentSize;
+    }
+    
+    /**
+     * @param path the file to read
+     * @return a new {@code MappedFileProducer.Builder} instance
+     */
+    public static Builder newBuilder(Path path) {
+        return new Builder(path);
+    }
+
+    /**
+     * Scans segments of the file until none remain.
+     * @throws UncheckedIOException if the file cannot be read, or a length-prefixed record runs past its end
+     */
+    @Override
+    public void produce(Production<ByteBuffer> production) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (lengthPrefixed) {
+                if (nextSegment.getAndIncrement() == 0) {
+                    scanLengthPrefixed(channel, production);
+                }
+                return;
+            }
+            long size = channel.size();
+            long segments = (size + segmentSize - 1) / segmentSize;
+            int segment;
+            while ((segment = nextSegment.getAndIncrement()) < segments) {
+                long start = align(channel, (long) segment * segmentSize, size);
+                long end = align(channel, (long) (segment + 1) * segmentSize, size);
+                if (end > start) {
+                    scanDelimited(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start), production);
+                }
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        } catch (InterruptedException ex) {
+            Logger.getLogger(MappedFileProducer.class.getName()).log(Level.SEVERE, "Producer interrupted", ex);
+        }
+    }
+    
+    /**
+     * @return the offset of the first record which starts at or after the given offset
+     */
+    private long align(FileChannel channel, long offset, long size) throws IOException {
+        if (offset <= 0) {
+            return 0;
+        }
+        if (offset >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(ALIGN_BUFFER_SIZE);
+        long position = offset - 1;
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == delimiter) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+    
+    private void scanDelimited(MappedByteBuffer segment, Production<ByteBuffer> production) throws InterruptedException {
+        int limit = segment.limit();
+        int start = 0;
+        for (int i = 0; i < limit; i++) {
+            if (segment.get(i) == delimiter) {
+                production.put(slice(segment, start, i));
+                start = i + 1;
+            }
+        }
+        if (start < limit) {
+            production.put(slice(segment, start, limit));
+        }
+    }
+    
+    private void scanLengthPrefixed(FileChannel channel, Production<ByteBuffer> production) throws IOException, InterruptedException {
+        long size = channel.size();
+        long position = 0;
+        long windowStart = 0;
+        MappedByteBuffer window = null;
+        while (position < size) {
+            if (position + 4 > size) {
+                throw new IOException("Truncated length at offset " + position + " of " + path);
+            }
+            if (window == null || position + 4 > windowStart + window.limit()) {
+                windowStart = position;
+                window = map(channel, position, Math.max(segmentSize, 4), size);
+            }
+            int length = window.getInt((int) (position - windowStart));
+            long end = position + 4 + length;
+            if (length < 0 || end > size) {
+                throw new IOException("Truncated record at offset " + position + " of " + path);
+            }
+            if (end > windowStart + window.limit()) {
+                windowStart = position;
+                window = map(channel, position, Math.max(segmentSize, 4 + length), size);
+            }
+            production.put(slice(window, (int) (position - windowStart) + 4, (int) (end - windowStart)));
+            position = end;
+        }
+    }
+    
+    private static MappedByteBuffer map(FileChannel channel, long position, long length, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Integer.MAX_VALUE, Math.min(length, size - position)));
+    }
+    
+    private static ByteBuffer slice(ByteBuffer buffer, int from, int to) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to);
+        view.position(from);
+        return view.slice();
+    }
+    
+    public static final class Builder {
+        
+        private final Path path;
+        private byte delimiter = '\n';
+        private boolean lengthPrefixed = false;
+        private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+        private Builder(Path path) {
+            this.path = path;
+        }
+        
+        /**
+         * Sets the byte which ends each record. Defaults to {@code '\n'}. The delimiter is not included in the 
+         * produced records.
+         * @param delimiter
+         * @return this
+         */
+        public Builder setDelimiter(byte delimiter) {
+            this.delimiter = delimiter;
+            this.lengthPrefixed = false;
+            return this;
+        }
+        
+        /**
+         * Reads records which are each preceded by their length as a 4-byte big-endian {@code int}, instead of 
+         * delimited ones. The length is not included in the produced records.
+         * @return this
+         */
+        public Builder setLengthPrefixed() {
+            this.lengthPrefixed = true;
+            return this;
+        }
+        
+        /**
+         * Sets the size of the segments the file is divided into, which is also the size of each mapping. Defaults 
+         * to {@link #DEFAULT_SEGMENT_SIZE}.
+         * @param segmentSize the segment size in bytes
+         * @return this
+         */
+        public Builder setSegmentSize(int segmentSize) {
+            if (segmentSize < 1) {
+                throw new IllegalArgumentException("segmentSize must be positive");
+            }
+            this.segmentSize = segmentSize;
+            return this;
+        }
+        
+        /**
+         * @return a new instance of {@code MappedFileProducer} configured by this {@code Builder}.
+         */
+        public MappedFileProducer build() {
+            return new MappedFileProducer(this);
+        }
+        
+    }
+
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Runtime statistics of a single {@link ProducerConsumer}, enabled with {@link ProducerConsumer.Builder#setMetrics}. 
+ * Counters are striped, so updating them from many threads does not contend. Time is only measured when a producer 
+ * finds the work queue full or a consumer finds it empty, so an unblocked hand-off costs no more than a counter 
+ * increment. The queue size is sampled every {@value #QUEUE_SAMPLE_INTERVAL} elements per producer.<br/><br/>
+ * An instance may be exported over JMX with {@link #registerMBean(String)}.
+ * @author Alan Smith
+ */
+public final class Metrics implements MetricsMBean {
+    
+    static final int QUEUE_SAMPLE_INTERVAL = 64;
+    
+    private volatile BlockingQueue<?> queue = null;
+    
+    /**
+     * Replaced as a whole when this instance is bound, so that JMX clients on other threads see either no counters 
+     * or every counter fully constructed.
+     */
+    private volatile Counters counters = new Counters(0, 0);
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final LongAdder producerBlockedNanos = new LongAdder();
+    private final LongAdder consumerBlockedNanos = new LongAdder();
+    private final LatencyHistogram producerBlocking = new LatencyHistogram();
+    private final LatencyHistogram consumerBlocking = new LatencyHistogram();
+    private final LongAdder producerExceptions = new LongAdder();
+    private final LongAdder consumerExceptions = new LongAdder();
+    
+    /**
+     * Binds this instance to the work queue and workers of a {@code ProducerConsumer} as it begins.
+     */
+    synchronized void attach(BlockingQueue<?> queue, int producers, int consumers) {
+        if (this.queue != null) {
+            throw new IllegalStateException("Metrics instance is already in use by another ProducerConsumer");
+        }
+        this.counters = new Counters(producers, consumers);
+        this.queue = queue;
+    }
+    
+    void produced(int producer, int count) {
+        counters.produced[producer].add(count);
+    }
+    
+    void consumed(int consumer) {
+        counters.consumed[consumer].increment();
+    }
+    
+    void sampleQueueSize() {
+        int size = queue.size();
+        int max;
+        while (size > (max = highWaterMark.get())) {
+            if (highWaterMark.compareAndSet(max, size)) {
+                return;
+            }
+        }
+    }
+    
+    void producerBlocked(long nanos) {
+        producerBlockedNanos.add(nanos);
+        producerBlocking.record(nanos);
+    }
+    
+    void consumerBlocked(long nanos) {
+        consumerBlockedNanos.add(nanos);
+        consumerBlocking.record(nanos);
+    }
+    
+    void producerFailed() {
+        producerExceptions.increment();
+    }
+    
+    void consumerFailed() {
+        consumerExceptions.increment();
+    }
+    
+    /**
+     * Registers this instance with the platform MBean server.
+     * @param objectName e.g. {@code "org.knoesis:type=ProducerConsumer,name=indexer"}
+     * @throws JMException if the name is malformed or already registered
+     */
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+    }
+    
+    /**
+     * Unregisters the MBean with the given name from the platform MBean server.
+     * @param objectName the name passed to {@link #registerMBean(String)}
+     * @throws JMException if the name is malformed or not registered
+     */
+    public void unregisterMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(objectName));
+    }
+    
+    /**
+     * @return the number of elements put by all producers
+     */
+    @Override
+    public long getProduced() {
+        return sum(counters.produced);
+    }
+    
+    /**
+     * @return the number of elements taken by all consumers
+     */
+    @Override
+    public long getConsumed() {
+        return sum(counters.consumed);
+    }
+    
+    /**
+     * @return the number of elements put by each producer, in the order they were added. If processing runs as a 
+     * {@link Service}, the last entry is the total submitted to it and put by the producers attached to it.
+     */
+    @Override
+    public long[] getProducedPerProducer() {
+        return values(counters.produced);
+    }
+    
+    /**
+     * @return the number of elements taken by each consumer, in the order they were added. If consumers are added 
+     * on demand by a {@link ConsumerFactory}, the last entry is the total taken by all of them.
+     */
+    @Override
+    public long[] getConsumedPerConsumer() {
+        return values(counters.consumed);
+    }
+    
+    /**
+     * @return the number of entries currently in the work queue (a batch counts as one entry)
+     */
+    @Override
+    public int getQueueSize() {
+        BlockingQueue<?> q = queue;
+        return q == null ? 0 : q.size();
+    }
+    
+    /**
+     * @return the largest number of entries observed in the work queue
+     */
+    @Override
+    public int getQueueHighWaterMark() {
+        return highWaterMark.get();
+    }
+    
+    /**
+     * @return the total time producers have spent waiting for space in the work queue
+     */
+    @Override
+    public long getProducerBlockedNanos() {
+        return producerBlockedNanos.sum();
+    }
+    
+    /**
+     * @return the total time consumers have spent waiting for elements in the work queue
+     */
+    @Override
+    public long getConsumerBlockedNanos() {
+        return consumerBlockedNanos.sum();
+    }
+    
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound on the given percentile of the times a producer waited for space in the work queue
+     */
+    public long getProducerBlockedNanos(double percentile) {
+        return producerBlocking.percentile(percentile);
+    }
+    
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound on the given percentile of the times a consumer waited for an element
+     */
+    public long getConsumerBlockedNanos(double percentile) {
+        return consumerBlocking.percentile(percentile);
+    }
+    
+    @Override
+    public long getProducerBlockedNanos99thPercentile() {
+        return getProducerBlockedNanos(99);
+    }
+    
+    @Override
+    public long getConsumerBlockedNanos99thPercentile() {
+        return getConsumerBlockedNanos(99);
+    }
+    
+    /**
+     * @return the number of exceptions thrown from {@link Producer#produce}
+     */
+    @Override
+    public long getProducerExceptions() {
+        return producerExceptions.sum();
+    }
+    
+    /**
+     * @return the number of exceptions thrown from {@link Consumer#consume}
+     */
+    @Override
+    public long getConsumerExceptions() {
+        return consumerExceptions.sum();
+    }
+    
+    private static long sum(LongAdder[] counters) {
+        long sum = 0;
+        for (LongAdder counter : counters) {
+            sum += counter.sum();
+        }
+        return sum;
+    }
+    
+    private static long[] values(LongAdder[] counters) {
+        long[] values = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            values[i] = counters[i].sum();
+        }
+        return values;
+    }
+    
+    /**
+     * The element counters of each producer and consumer.
+     */
+    private static final class Counters {
+        
+        final LongAdder[] produced;
+        final LongAdder[] consumed;
+
+        Counters(int producers, int consumers) {
+            this.produced = newCounters(producers);
+            this.consumed = newCounters(consumers);
+        }
+        
+        private static LongAdder[] newCounters(int count) {
+            LongAdder[] counters = new LongAdder[count];
+            for (int i = 0; i < count; i++) {
+                counters[i] = new LongAdder();
+            }
+            return counters;
+        }
+        
+    }
+
+}
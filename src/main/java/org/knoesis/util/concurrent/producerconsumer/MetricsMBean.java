@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * The JMX management interface of {@link Metrics}. Durations are in nanoseconds.
+ * @author Alan Smith
+ */
+public interface MetricsMBean {
+    
+    long getProduced();
+    
+    long getConsumed();
+    
+    long[] getProducedPerProducer();
+    
+    long[] getConsumedPerConsumer();
+    
+    int getQueueSize();
+    
+    int getQueueHighWaterMark();
+    
+    long getProducerBlockedNanos();
+    
+    long getConsumerBlockedNanos();
+    
+    long getProducerBlockedNanos99thPercentile();
+    
+    long getConsumerBlockedNanos99thPercentile();
+    
+    long getProducerExceptions();
+    
+    long getConsumerExceptions();
+
+}
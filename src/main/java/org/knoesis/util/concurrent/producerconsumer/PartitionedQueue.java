@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link BlockingQueue} made of one queue per consumer, into which each element is routed by the hash of its key. 
+ * Each consumer takes only from its own queue (see {@link #forConsumer}), so elements with the same key are consumed 
+ * by a single consumer, in the order in which each producing thread put them. {@code null} elements are routed to 
+ * the first consumer. Each {@link ProducerConsumer#DONE} marker is routed to the next consumer in turn, so that one 
+ * reaches every consumer.<br/><br/>The iterator is not supported.
+ * @author Alan Smith
+ */
+final class PartitionedQueue extends AbstractQueue<Object> implements BlockingQueue<Object> {
+    
+    private final BlockingQueue<Object>[] partitions;
+    private final KeyExtractor<Object> keyExtractor;
+    private final AtomicInteger dones;
+    private final int home;
+
+    /**
+     * @param consumers the number of partitions
+     * @param bufferSize the maximum number of entries, or {@link Integer#MAX_VALUE} for the default. Divided evenly 
+     * between the partitions.
+     * @param queueStrategy the kind of queue used for each partition
+     * @param singleProducer whether at most one thread at a time will put into the queue
+     */
+    PartitionedQueue(int consumers, int bufferSize, QueueStrategy queueStrategy, boolean singleProducer, KeyExtractor<Object> keyExtractor) {
+        int capacity = bufferSize == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(1, (bufferSize + consumers - 1) / consumers);
+        this.partitions = new BlockingQueue[consumers];
+        for (int i = 0; i < consumers; i++) {
+            partitions[i] = queueStrategy.newQueue(capacity, singleProducer, true);
+        }
+        this.keyExtractor = keyExtractor;
+        this.dones = new AtomicInteger();
+        this.home = -1;
+    }
+    
+    private PartitionedQueue(PartitionedQueue queue, int home) {
+        this.partitions = queue.partitions;
+        this.keyExtractor = queue.keyExtractor;
+        this.dones = queue.dones;
+        this.home = home;
+    }
+    
+    /**
+     * @return a view of this queue which only takes from the given consumer's partition
+     */
+    PartitionedQueue forConsumer(int consumer) {
+        return new PartitionedQueue(this, consumer);
+    }
+    
+    /**
+     * Makes putting safe for several threads at a time, for a queue created for a single producer. Must be called 
+     * before any entry is put.
+     */
+    void shareProducers() {
+        for (BlockingQueue<Object> partition : partitions) {
+            if (partition instanceof RingBufferQueue) {
+                ((RingBufferQueue) partition).shareProducers();
+            }
+        }
+    }
+    
+    /**
+     * @return the partition the entry is routed to
+     */
+    private BlockingQueue<Object> route(Object e) {
+        if (e == ProducerConsumer.DONE) {
+            return partitions[(dones.getAndIncrement() & Integer.MAX_VALUE) % partitions.length];
+        }
+        if (e == ProducerConsumer.NULL) {
+            return partitions[0];
+        }
+        int hash = keyExtractor.keyOf(e).hashCode();
+        hash ^= hash >>> 16;
+        return partitions[(hash & Integer.MAX_VALUE) % partitions.length];
+    }
+
+    @Override
+    public boolean offer(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        return route(e).offer(e);
+    }
+
+    @Override
+    public void put(Object e) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        route(e).put(e);
+    }
+
+    @Override
+    public boolean offer(Object e, long timeout, TimeUnit unit) throws InterruptedException {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        return route(e).offer(e, timeout, unit);
+    }
+
+    @Override
+    public Object poll() {
+        if (home >= 0) {
+            return partitions[home].poll();
+        }
+        for (BlockingQueue<Object> partition : partitions) {
+            Object e = partition.poll();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object peek() {
+        if (home >= 0) {
+            return partitions[home].peek();
+        }
+        for (BlockingQueue<Object> partition : partitions) {
+            Object e = partition.peek();
+            if (e != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @throws IllegalStateException if called on the shared queue rather than a consumer's view
+     */
+    @Override
+    public Object take() throws InterruptedException {
+        return consumerPartition().take();
+    }
+
+    /**
+     * @throws IllegalStateException if called on the shared queue rather than a consumer's view
+     */
+    @Override
+    public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return consumerPartition().poll(timeout, unit);
+    }
+    
+    private BlockingQueue<Object> consumerPartition() {
+        if (home < 0) {
+            throw new IllegalStateException("Only a consumer's view of a partitioned queue may wait for elements");
+        }
+        return partitions[home];
+    }
+
+    @Override
+    public int remainingCapacity() {
+        long remaining = 0;
+        for (BlockingQueue<Object> partition : partitions) {
+            remaining += partition.remainingCapacity();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Object> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Object> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        Object e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (BlockingQueue<Object> partition : partitions) {
+            size += partition.size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+}
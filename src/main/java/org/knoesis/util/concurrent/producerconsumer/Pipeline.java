@@ -0,0 +1,495 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A series of producer-consumer problems, in which the elements produced by a {@link Producer} pass through a number 
+ * of {@link Stage}s before being consumed by a {@link Consumer}. Each stage runs on its own threads and is linked to 
+ * the next by a bounded work queue, so a slow stage holds back the stages before it rather than letting elements 
+ * accumulate in memory. Cheap stages may instead be fused onto the threads of the stage before them, which avoids a 
+ * queue hand-off per element.<br/><br/>Example usage:<br/><br/>
+ * <pre>
+ * {@code 
+ *  Pipeline pipeline = Pipeline.from(new DocumentReader())    // Producer<String>
+ *      .stage(new Parser(), 4, 1024)                           // Stage<String, Document>, 4 threads
+ *      .then(new LanguageFilter())                             // Stage<Document, Document>, fused with Parser
+ *      .stage(new Analyzer(), 8, 256)                          // Stage<Document, Terms>, 8 threads
+ *      .to(new IndexWriter(), 1, 256)                          // Consumer<Terms>
+ *      .build();
+ *  pipeline.begin();
+ * }
+ * </pre>
+ * End-of-stream passes down the pipeline: once the producer and every thread of a stage have finished, the next 
+ * stage's threads finish when they reach the end of their queue.<br/><br/>By default, a stage running on several 
+ * threads passes on its outputs in whatever order its threads finish. An ordered pipeline (see 
+ * {@link Builder#setOrdered}) instead numbers the elements the producer puts, and each stage passes on the outputs 
+ * of each input in input order, so a single-threaded consumer sees them in the order they were produced.<br/><br/>If 
+ * the producer, a stage or the consumer throws an exception, the whole pipeline stops, as under 
+ * {@link FailurePolicy#FAIL_FAST}: puts throw {@code InterruptedException}, every thread is interrupted, the 
+ * elements left in the queues are discarded, and {@link #begin()} throws once every thread has stopped.
+ * @author Alan Smith
+ */
+public final class Pipeline {
+    
+    private final Producer<Object> source;
+    private final List<Segment> segments;
+    private final Consumer<Object> sink;
+    private final int sinkParallelism;
+    private final int sinkBufferSize;
+    private final QueueStrategy queueStrategy;
+    private final Executor executor;
+    private final int reorderWindow;
+
+    private Pipeline(Definition definition) {
+        this.source = definition.source;
+        this.segments = new ArrayList<Segment>(definition.segments);
+        this.sink = definition.sink;
+        this.sinkParallelism = definition.sinkParallelism;
+        this.sinkBufferSize = definition.sinkBufferSize;
+        this.queueStrategy = definition.queueStrategy;
+        this.executor = definition.executor;
+        this.reorderWindow = definition.reorderWindow;
+    }
+    
+    /**
+     * Begins processing. This method will block until the producer, every stage and the consumer have finished.
+     * @throws InterruptedException if the calling thread is interrupted, in which case the pipeline is stopped
+     * @throws ProcessingException if the producer, a stage or the consumer threw an exception, after the rest of the 
+     * pipeline has stopped
+     */
+    public void begin() throws InterruptedException {
+        int count = segments.size();
+        List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>(count);
+        for (int i = 0; i < count; i++) {
+            boolean last = i == count - 1;
+            int downstream = last ? sinkParallelism : segments.get(i + 1).parallelism;
+            int bufferSize = last ? sinkBufferSize : segments.get(i + 1).bufferSize;
+            queues.add(queueStrategy.newQueue(bufferSize, segments.get(i).parallelism == 1, downstream == 1));
+        }
+        int threads = 1 + sinkParallelism;
+        for (int i = 1; i < count; i++) {
+            threads += segments.get(i).parallelism;
+        }
+        final Completion completion = new Completion(queues.get(0));
+        final AtomicInteger running = new AtomicInteger(threads);
+        final BlockingQueue<Object> sinkQueue = queues.get(count - 1);
+        for (int i = 0; i < sinkParallelism; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    completion.enter();
+                    try {
+                        // each sink thread needs its own view, as a view's iterator is not thread-safe
+                        sink.consume(new Consumables<Object>(sinkQueue, null, 0, null, false, completion, null));
+                    } catch (Exception ex) {
+                        completion.failed(ex, true);
+                    } finally {
+                        finished(completion, running);
+                    }
+                }
+            });
+        }
+        for (int i = count - 1; i > 0; i--) {
+            Segment segment = segments.get(i);
+            int downstream = i == count - 1 ? sinkParallelism : segments.get(i + 1).parallelism;
+            AtomicInteger remaining = new AtomicInteger(segment.parallelism);
+            ReorderBuffer reorder = reorderWindow > 0 ? new ReorderBuffer(reorderWindow, queues.get(i), i < count - 1) : null;
+            for (int j = 0; j < segment.parallelism; j++) {
+                executor.execute(new SegmentWorker(segment, queues.get(i - 1), queues.get(i), remaining, downstream, reorder, 
+                        completion, running));
+            }
+        }
+        Production<Object> firstOutput = reorderWindow > 0 && count > 1 
+                ? new SequencingProduction(queues.get(0), completion) : output(queues.get(0), completion);
+        final Production<Object> sourceOutput = chain(segments.get(0), firstOutput);
+        final BlockingQueue<Object> firstQueue = queues.get(0);
+        final int firstDownstream = count == 1 ? sinkParallelism : segments.get(1).parallelism;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                completion.enter();
+                try {
+                    source.produce(sourceOutput);
+                } catch (RuntimeException ex) {
+                    completion.failed(ex, true);
+                } finally {
+                    endOfStream(firstQueue, firstDownstream, completion);
+                    finished(completion, running);
+                }
+            }
+        });
+        try {
+            completion.get();
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof ProcessingException 
+                    ? (ProcessingException) ex.getCause() : new ProcessingException(Collections.singletonList(ex.getCause()));
+        } catch (InterruptedException ex) {
+            completion.cancel(true);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Returns a {@code Production} which puts into the queue until the pipeline stops.
+     */
+    private static Production<Object> output(BlockingQueue<Object> queue, Completion completion) {
+        return new Production<Object>(queue, 1, Long.MAX_VALUE, null, 0, completion, null);
+    }
+    
+    /**
+     * Records that a thread of the pipeline has finished, completing the pipeline once they all have.
+     */
+    private static void finished(Completion completion, AtomicInteger running) {
+        completion.exit();
+        if (running.decrementAndGet() == 0) {
+            completion.complete();
+        }
+    }
+    
+    /**
+     * Returns a {@code Production} which runs each element through the segment's fused stages before putting the 
+     * results into the given {@code Production}.
+     */
+    private static Production<Object> chain(Segment segment, Production<Object> output) {
+        Production<Object> production = output;
+        for (int i = segment.stages.size() - 1; i >= 0; i--) {
+            production = new StageProduction(segment.stages.get(i), production);
+        }
+        return production;
+    }
+    
+    /**
+     * Places a {@link ProducerConsumer#DONE} marker into the queue for each of its consumers, unless the pipeline has 
+     * stopped, in which case the consumers discard their queue instead and may no longer make space for the markers.
+     */
+    private static void endOfStream(BlockingQueue<Object> queue, int consumers, Completion completion) {
+        boolean interrupted = false;
+        int placed = 0;
+        while (placed < consumers && !completion.isStopped()) {
+            try {
+                queue.put(ProducerConsumer.DONE);
+                placed++;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Starts a new {@code Pipeline.Builder} with the given producer as its source.
+     * @param source the producer of the elements entering the pipeline
+     * @return a new {@code Pipeline.Builder} instance
+     */
+    public static <E> Builder<E> from(Producer<? extends E> source) {
+        return new Builder<E>(new Definition((Producer<Object>) source));
+    }
+    
+    /**
+     * @param E the type of object leaving the most recently added stage
+     */
+    public static final class Builder<E> {
+        
+        private final Definition definition;
+
+        private Builder(Definition definition) {
+            this.definition = definition;
+        }
+        
+        /**
+         * Adds a stage which runs on its own threads, taking its input from a bounded work queue.
+         * @param stage the stage to add
+         * @param parallelism the number of threads to run the stage on
+         * @param bufferSize the maximum number of elements waiting in the stage's input queue
+         * @return a {@code Builder} for the rest of the pipeline
+         */
+        public <O> Builder<O> stage(Stage<? super E, ? extends O> stage, int parallelism, int bufferSize) {
+            checkSizes(parallelism, bufferSize);
+            Segment segment = new Segment(parallelism, bufferSize);
+            segment.stages.add((Stage<Object, Object>) stage);
+            definition.segments.add(segment);
+            return new Builder<O>(definition);
+        }
+        
+        /**
+         * Adds a stage which runs on the threads of the stage before it (or of the producer, if there is none), 
+         * receiving each element as soon as it is output. Suited to stages which are cheap compared with the cost of 
+         * a queue hand-off, e.g. filters and simple conversions.
+         * @param stage the stage to add
+         * @return a {@code Builder} for the rest of the pipeline
+         */
+        public <O> Builder<O> then(Stage<? super E, ? extends O> stage) {
+            definition.segments.get(definition.segments.size() - 1).stages.add((Stage<Object, Object>) stage);
+            return new Builder<O>(definition);
+        }
+        
+        /**
+         * Sets the consumer at the end of the pipeline.
+         * @param sink the consumer to add
+         * @param parallelism the number of threads to run the consumer on
+         * @param bufferSize the maximum number of elements waiting in the consumer's input queue
+         * @return this
+         */
+        public Builder<E> to(Consumer<? super E> sink, int parallelism, int bufferSize) {
+            checkSizes(parallelism, bufferSize);
+            definition.sink = (Consumer<Object>) sink;
+            definition.sinkParallelism = parallelism;
+            definition.sinkBufferSize = bufferSize;
+            return this;
+        }
+        
+        /**
+         * Sets the kind of work queue which links the stages. Defaults to {@link QueueStrategy#LINKED}.
+         * @param queueStrategy
+         * @return this
+         */
+        public Builder<E> setQueueStrategy(QueueStrategy queueStrategy) {
+            definition.queueStrategy = queueStrategy;
+            return this;
+        }
+        
+        /**
+         * Runs the pipeline on the given executor instead of the shared pool. The executor is owned by the caller 
+         * and is not shut down. It must be able to run every thread of every stage at the same time.
+         * @param executor
+         * @return this
+         */
+        public Builder<E> setExecutor(Executor executor) {
+            definition.executor = executor;
+            return this;
+        }
+        
+        /**
+         * Makes the pipeline ordered: each stage passes on the outputs of its inputs in the order the inputs were 
+         * put by the producer (or the stage before it), however many threads it runs on, so a consumer running on a 
+         * single thread receives elements in production order. Each multi-threaded stage holds the outputs of 
+         * inputs which finish early until every earlier input has finished.
+         * @param reorderWindow the maximum number of inputs a stage may finish ahead of its oldest unfinished input, 
+         * bounding the outputs held back. A thread which finishes an input further ahead waits.
+         * @return this
+         */
+        public Builder<E> setOrdered(int reorderWindow) {
+            if (reorderWindow < 1) {
+                throw new IllegalArgumentException("reorderWindow must be positive");
+            }
+            definition.reorderWindow = reorderWindow;
+            return this;
+        }
+        
+        /**
+         * @return a new instance of {@code Pipeline} configured by this {@code Builder}.
+         * @throws IllegalStateException if no consumer has been set
+         */
+        public Pipeline build() {
+            if (definition.sink == null) {
+                throw new IllegalStateException("No consumer has been set");
+            }
+            return new Pipeline(definition);
+        }
+        
+        private static void checkSizes(int parallelism, int bufferSize) {
+            if (parallelism < 1) {
+                throw new IllegalArgumentException("parallelism must be positive");
+            }
+            if (bufferSize < 1) {
+                throw new IllegalArgumentException("bufferSize must be positive");
+            }
+        }
+        
+    }
+    
+    /**
+     * The configuration shared by the {@code Builder}s of a single pipeline.
+     */
+    private static final class Definition {
+        
+        private final Producer<Object> source;
+        private final List<Segment> segments = new ArrayList<Segment>();
+        private Consumer<Object> sink = null;
+        private int sinkParallelism;
+        private int sinkBufferSize;
+        private QueueStrategy queueStrategy = QueueStrategy.LINKED;
+        private Executor executor = ThreadPools.shared();
+        private int reorderWindow = 0;
+
+        Definition(Producer<Object> source) {
+            this.source = source;
+            segments.add(new Segment(1, 0));
+        }
+        
+    }
+    
+    /**
+     * A group of fused stages and the threads which run them. The first segment holds the stages fused onto the 
+     * producer.
+     */
+    private static final class Segment {
+        
+        private final int parallelism;
+        private final int bufferSize;
+        private final List<Stage<Object, Object>> stages = new ArrayList<Stage<Object, Object>>();
+
+        Segment(int parallelism, int bufferSize) {
+            this.parallelism = parallelism;
+            this.bufferSize = bufferSize;
+        }
+        
+    }
+    
+    /**
+     * Takes elements from a segment's input queue and runs them through its stages. The last worker of a segment to 
+     * finish signals the end of the stream to the next one. In an ordered pipeline, the input entries are 
+     * {@link Sequenced} and the outputs of each are completed in the segment's {@link ReorderBuffer}.
+     */
+    private static final class SegmentWorker implements Runnable {
+        
+        private final Segment segment;
+        private final BlockingQueue<Object> input;
+        private final BlockingQueue<Object> output;
+        private final AtomicInteger remaining;
+        private final int downstream;
+        private final ReorderBuffer reorder;
+        private final Completion completion;
+        private final AtomicInteger running;
+
+        SegmentWorker(Segment segment, BlockingQueue<Object> input, BlockingQueue<Object> output, AtomicInteger remaining, int downstream, ReorderBuffer reorder, Completion completion, AtomicInteger running) {
+            this.segment = segment;
+            this.input = input;
+            this.output = output;
+            this.remaining = remaining;
+            this.downstream = downstream;
+            this.reorder = reorder;
+            this.completion = completion;
+            this.running = running;
+        }
+
+        @Override
+        public void run() {
+            completion.enter();
+            CollectingProduction collected = reorder == null ? null : new CollectingProduction();
+            Production<Object> production = chain(segment, reorder == null ? output(output, completion) : collected);
+            try {
+                for (Object entry : new Consumables<Object>(input, null, 0, null, false, completion, null)) {
+                    Object element = reorder == null ? entry : ((Sequenced) entry).element;
+                    production.put(element);
+                    if (reorder != null) {
+                        reorder.complete(((Sequenced) entry).sequence, collected.take());
+                    }
+                }
+            } catch (InterruptedException ex) {
+                completion.failed(ex, true);
+            } catch (RuntimeException ex) {
+                completion.failed(ex, true);
+            } finally {
+                if (remaining.decrementAndGet() == 0) {
+                    endOfStream(output, downstream, completion);
+                }
+                finished(completion, running);
+            }
+        }
+        
+    }
+    
+    /**
+     * Numbers the elements put into it in the order they are put, for an ordered pipeline.
+     */
+    private static final class SequencingProduction extends Production<Object> {
+        
+        private final BlockingQueue<Object> queue;
+        private final Completion completion;
+        private final AtomicLong next = new AtomicLong();
+
+        SequencingProduction(BlockingQueue<Object> queue, Completion completion) {
+            super(null);
+            this.queue = queue;
+            this.completion = completion;
+        }
+
+        @Override
+        public void put(Object element) throws InterruptedException {
+            if (completion.isStopped()) {
+                throw new InterruptedException("Processing has stopped");
+            }
+            queue.put(new Sequenced(next.getAndIncrement(), element));
+        }
+        
+    }
+    
+    /**
+     * Holds the outputs of a single input, for an ordered pipeline.
+     */
+    private static final class CollectingProduction extends Production<Object> {
+        
+        private List<Object> elements = new ArrayList<Object>();
+
+        CollectingProduction() {
+            super(null);
+        }
+
+        @Override
+        public void put(Object element) {
+            elements.add(element);
+        }
+        
+        /**
+         * @return the outputs held since the last call
+         */
+        List<Object> take() {
+            if (elements.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Object> taken = elements;
+            elements = new ArrayList<Object>();
+            return taken;
+        }
+        
+    }
+    
+    /**
+     * Passes each element put into it to a stage, whose output goes to the next {@code Production} in the chain.
+     */
+    private static final class StageProduction extends Production<Object> {
+        
+        private final Stage<Object, Object> stage;
+        private final Production<Object> next;
+
+        StageProduction(Stage<Object, Object> stage, Production<Object> next) {
+            super(null);
+            this.stage = stage;
+            this.next = next;
+        }
+
+        @Override
+        public void put(Object element) throws InterruptedException {
+            stage.process(element, next);
+        }
+        
+    }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the producers and consumers of a primitive-specialized producer-consumer problem (e.g. 
+ * {@link IntProducerConsumer}), whose elements are held in a ring buffer of primitives rather than a queue of objects.
+ * @param <P> the type of producer
+ * @param <C> the type of consumer
+ * @author Alan Smith
+ */
+abstract class PrimitiveProducerConsumer<P, C> {
+    
+    final RingSequencer sequencer;
+    private final List<P> producers;
+    private final List<C> consumers;
+    private final Executor executor;
+
+    PrimitiveProducerConsumer(Collection<P> producers, Collection<C> consumers, int bufferSize, Executor executor) {
+        this.producers = new ArrayList<P>(producers);
+        this.consumers = new ArrayList<C>(consumers);
+        this.executor = executor;
+        int capacity = bufferSize == Integer.MAX_VALUE ? QueueStrategy.DEFAULT_PREALLOCATED_CAPACITY : bufferSize;
+        this.sequencer = new RingSequencer(capacity, producers.size() == 1, consumers.size() == 1);
+    }
+    
+    /**
+     * Runs a producer on the calling thread.
+     */
+    abstract void produce(P producer);
+    
+    /**
+     * Runs a consumer on the calling thread.
+     */
+    abstract void consume(C consumer);
+    
+    /**
+     * Begins processing. This method will block until all producers and consumers have finished.
+     * @throws InterruptedException if the calling thread is interrupted.
+     */
+    public void begin() throws InterruptedException {
+        final CountDownLatch producerLatch = new CountDownLatch(producers.size());
+        final CountDownLatch consumerLatch = new CountDownLatch(consumers.size());
+        for (final C consumer : consumers) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        consume(consumer);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(ProducerConsumer.class.getName()).log(Level.SEVERE, "Consumer threw exception", ex);
+                    } finally {
+                        consumerLatch.countDown();
+                    }
+                }
+            });
+        }
+        for (final P producer : producers) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        produce(producer);
+                    } catch (RuntimeException ex) {
+                        Logger.getLogger(ProducerConsumer.class.getName()).log(Level.SEVERE, "Producer threw exception", ex);
+                    } finally {
+                        producerLatch.countDown();
+                    }
+                }
+            });
+        }
+        producerLatch.await();
+        sequencer.close();
+        consumerLatch.await();
+    }
+
+}
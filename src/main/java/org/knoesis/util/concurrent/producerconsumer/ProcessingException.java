@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when processing fails under {@link FailurePolicy#FAIL_FAST} or {@link FailurePolicy#COLLECT}. The first 
+ * failure is the cause, and any others are suppressed.
+ * @author Alan Smith
+ */
+public class ProcessingException extends RuntimeException {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final List<Throwable> failures;
+
+    /**
+     * @param failures the exceptions which caused processing to fail, at least one
+     */
+    public ProcessingException(List<? extends Throwable> failures) {
+        super(failures.size() == 1 ? "Processing failed" : "Processing failed " + failures.size() + " times", failures.get(0));
+        this.failures = Collections.unmodifiableList(new ArrayList<Throwable>(failures));
+        for (int i = 1; i < failures.size(); i++) {
+            addSuppressed(failures.get(i));
+        }
+    }
+    
+    /**
+     * @return every exception which caused processing to fail, in the order they were recorded
+     */
+    public List<Throwable> getFailures() {
+        return failures;
+    }
+
+}
@@ -15,81 +15,461 @@
  */
 package org.knoesis.util.concurrent.producerconsumer;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * An API to help simplify implementations of the <a href="http://en.wikipedia.org/wiki/Producer_consumer_problem">Producer-Consumer Problem</a>.
  * This class supports an arbitrary number of {@link Producer}s and {@link Consumer}s, and runs each on its own separate thread.
+ * By default, threads are taken from a long-lived pool shared by all instances.
  * @author Alan Smith
  */
 public class ProducerConsumer<E> {
     
-    private final BlockingQueue<Item<E>> buffer;
-    private final Production<E> production;
-    private final Iterable<E> consumables;
-    private final Collection<Producer<? extends E>> producers;
-    private final Collection<Consumer<? super E>> consumers;
-    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final BlockingQueue<Object> buffer;
+    private final List<Production<E>> productions;
+    private final List<Consumables<E>> consumables;
+    private final List<Producer<? extends E>> producers;
+    private final List<Consumer<? super E>> consumers;
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Metrics metrics;
+    private final ElasticConsumers<E> elastic;
+    private final Completion completion;
+    private final WeightBudget budget;
+    private final FailurePolicy failurePolicy;
+    private final int maxAttempts;
+    private final DeadLetterSink<? super E> deadLetters;
+    private final AtomicBoolean begun = new AtomicBoolean();
     
-    static final Item DONE = new Item(null);
+    /**
+     * Counts down the steps left before processing is complete: putting the end-of-stream markers once the producers 
+     * have finished, each consumer finishing, and all elastic consumers finishing.
+     */
+    private final AtomicInteger remaining;
+    
+    /**
+     * Counts the consumers which have not yet finished, counting those created by a consumer factory as one.
+     */
+    private final AtomicInteger consuming;
+    
+    /**
+     * How often the backlog is checked when consumers are added on demand.
+     */
+    private static final long SCALING_INTERVAL_MILLIS = 10;
     
-    ProducerConsumer(Collection<Producer<? extends E>> producers, Collection<Consumer<? super E>> consumers, BlockingQueue<Item<E>> buffer) {
+    /**
+     * Number of entries the work queue holds unless a buffer size is set.
+     */
+    static final int DEFAULT_BUFFER_SIZE = QueueStrategy.DEFAULT_PREALLOCATED_CAPACITY;
+    
+    /**
+     * Size of the segment files to which the work queue spills unless another is set: 64MB.
+     */
+    static final int DEFAULT_SPILL_SEGMENT_SIZE = 64 * 1024 * 1024;
+    
+    /**
+     * Placed in the work queue once per {@link Consumer} after all {@link Producer}s have finished. When consumers 
+     * are added on demand, a single instance is placed instead, and each consumer puts it back after taking it.
+     */
+    static final Object DONE = new Object();
+    
+    /**
+     * Stands in for {@code null} elements in the work queue. Other elements are queued as they are.
+     */
+    static final Object NULL = new Object();
+    
+    ProducerConsumer(Builder<E> builder, BlockingQueue<Object> buffer, Executor executor, boolean ownsExecutor) {
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
         this.buffer = buffer;
-        this.production = new Production(buffer);
-        this.consumables = new Consumables(buffer);
-        this.producers = producers;
-        this.consumers = consumers;
+        this.completion = new Completion(buffer);
+        this.producers = new ArrayList<Producer<? extends E>>(builder.producers);
+        this.consumers = new ArrayList<Consumer<? super E>>(builder.consumers);
+        this.metrics = builder.metrics;
+        this.budget = builder.weigher == null ? null : new WeightBudget(builder.maxWeight, (Weigher<Object>) builder.weigher);
+        this.failurePolicy = builder.failurePolicy;
+        this.maxAttempts = builder.maxAttempts;
+        this.deadLetters = builder.deadLetters;
+        this.elastic = builder.consumerFactory == null ? null : new ElasticConsumers<E>(builder.consumerFactory, 
+                builder.minConsumers, builder.maxConsumers, builder.scaleUpQueueDepth, builder.consumerIdleTimeoutNanos);
+        this.productions = new ArrayList<Production<E>>(producers.size());
+        for (int i = 0; i < producers.size(); i++) {
+            productions.add(new Production<E>(buffer, builder.batchSize, builder.maxLingerNanos, metrics, i, completion, budget));
+        }
+        this.consumables = new ArrayList<Consumables<E>>(consumers.size());
+        for (int i = 0; i < consumers.size(); i++) {
+            BlockingQueue<Object> queue = buffer;
+            if (buffer instanceof WorkStealingQueue) {
+                queue = ((WorkStealingQueue) buffer).forConsumer(i);
+            } else if (buffer instanceof PartitionedQueue) {
+                queue = ((PartitionedQueue) buffer).forConsumer(i);
+            }
+            consumables.add(new Consumables<E>(queue, metrics, i, elastic, false, completion, budget));
+        }
+        this.remaining = new AtomicInteger(1 + consumers.size() + (elastic == null ? 0 : 1));
+        this.consuming = new AtomicInteger(consumers.size() + (elastic == null ? 0 : 1));
     }
     
     /**
-     * Begins processing. This method will block until all {@link Producer}s and {@link Consumer}s have finished.
+     * Begins processing. This method will block until all {@link Producer}s and {@link Consumer}s have finished. If 
+     * every consumer finishes while producers are still putting elements, e.g. because each has thrown under 
+     * {@link FailurePolicy#LOG}, processing stops as if cancelled, so that the producers do not wait forever for 
+     * space in the work queue: their {@link Production#put} calls throw {@code InterruptedException}, and the 
+     * elements left in the work queue are discarded.
      * @throws InterruptedException if the calling thread is interrupted.
+     * @throws IllegalStateException if processing has already begun
+     * @throws ProcessingException if a producer or consumer threw an exception under {@link FailurePolicy#FAIL_FAST} 
+     * or {@link FailurePolicy#COLLECT}
+     * @throws CancellationException if processing was cancelled, as for {@link Completion#get()}, so that a cancelled 
+     * run is not mistaken for one which completed
      */
     public void begin() throws InterruptedException {
-        final CountDownLatch producerLatch = new CountDownLatch(producers.size());
-        final CountDownLatch consumerLatch = new CountDownLatch(consumers.size());
-        for (final Consumer consumer : consumers) {
-            executor.submit(new Runnable() {
+        try {
+            beginAsync().get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof ProcessingException 
+                    ? (ProcessingException) cause : new ProcessingException(Collections.singletonList(cause));
+        }
+    }
+    
+    /**
+     * Begins processing without waiting for it to finish. The returned handle reports progress, may be used to 
+     * cancel processing, and completes once all {@link Producer}s and {@link Consumer}s have finished. No thread 
+     * waits on behalf of the caller: the thread of the last producer to finish signals the end of the stream to the 
+     * consumers, and the thread of the last consumer to finish completes the handle.
+     * @return a handle on the processing
+     * @throws IllegalStateException if processing has already begun
+     */
+    public Completion beginAsync() {
+        start(producers.size());
+        final AtomicInteger producing = new AtomicInteger(producers.size());
+        for (int p = 0; p < producers.size(); p++) {
+            final Producer<? extends E> producer = producers.get(p);
+            final Production<E> production = productions.get(p);
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
                     try {
-                        consumer.consume(consumables);
-                    } catch(Exception ex) {
-                        Logger.getLogger(ProducerConsumer.class.getName()).log(Level.SEVERE, "Consumer threw exception", ex);
+                        runProducer(producer, production);
                     } finally {
-                        consumerLatch.countDown();
+                        if (producing.decrementAndGet() == 0) {
+                            endOfStream();
+                        }
                     }
                 }
             });
         }
-        for (final Producer producer : producers) {
-            executor.submit(new Runnable() {
+        if (producers.isEmpty()) {
+            endOfStream();
+        }
+        return completion;
+    }
+    
+    /**
+     * Begins processing as a long-running service. Consumers are started as by {@link #beginAsync()}, but keep 
+     * waiting for elements until the service is shut down, so that they can be reused for a continuous stream 
+     * instead of building a new instance for each batch of work. Elements can be submitted from any thread through 
+     * the returned service, and producers can be attached and detached while it runs; any producers added to the 
+     * builder are attached at the start. A service does not batch elements, as its producers and submitting threads 
+     * may wait indefinitely between elements, holding a partial batch for as long.<br/><br/>Example usage:<br/><br/>
+     * <pre>
+     * {@code
+     *  Service<Request> service = pc.startService();
+     *  service.submit(request);
+     *  ...
+     *  service.shutdown();
+     *  service.awaitTermination(1, TimeUnit.MINUTES);
+     * }
+     * </pre>
+     * @return a handle on the running service
+     * @throws IllegalStateException if processing has already begun
+     */
+    public Service<E> startService() {
+        start(producers.size() + 1);
+        // the queue may have been built for the builder's producers alone, but submissions come from any thread
+        if (buffer instanceof RingBufferQueue) {
+            ((RingBufferQueue) buffer).shareProducers();
+        } else if (buffer instanceof PartitionedQueue) {
+            ((PartitionedQueue) buffer).shareProducers();
+        }
+        Service<E> service = new Service<E>(this, newProduction(producers.size()), completion);
+        for (int p = 0; p < producers.size(); p++) {
+            service.attach(producers.get(p), newProduction(p));
+        }
+        return service;
+    }
+    
+    /**
+     * Starts the consumers, once only.
+     * @param producerSlots the number of producers to keep metrics for
+     */
+    private void start(int producerSlots) {
+        if (!begun.compareAndSet(false, true)) {
+            throw new IllegalStateException("Processing has already begun");
+        }
+        if (metrics != null) {
+            metrics.attach(buffer, producerSlots, consumers.size() + (elastic == null ? 0 : 1));
+        }
+        for (int c = 0; c < consumers.size(); c++) {
+            final Consumer consumer = consumers.get(c);
+            final Consumables<E> consumerView = consumables.get(c);
+            executor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    completion.enter();
                     try {
-                        producer.produce(production);
-                    } catch (RuntimeException ex) {
-                        Logger.getLogger(ProducerConsumer.class.getName()).log(Level.SEVERE, "Producer threw exception", ex);
+                        consume(consumer, consumerView);
                     } finally {
-                        producerLatch.countDown();
+                        completion.exit();
+                        consumerDone();
+                        stepDone();
                     }
                 }
             });
         }
-        producerLatch.await();
-        for (int i=0; i<consumers.size(); i++) {
-            buffer.put(DONE);
+        if (elastic != null) {
+            for (int i = 0; i < elastic.min(); i++) {
+                if (elastic.tryGrow()) {
+                    startElasticConsumer();
+                }
+            }
+            startScaling();
+        }
+    }
+    
+    /**
+     * Runs a producer on the calling thread until it returns, then hands off its partial batches.
+     */
+    void runProducer(Producer producer, Production<E> production) {
+        completion.enter();
+        try {
+            producer.produce(production);
+            production.flush();
+        } catch (InterruptedException ex) {
+            if (!completion.isStopped() && !production.isClosed()) {
+                Logger.getLogger(ProducerConsumer.class.getName()).log(Level.SEVERE, "Producer interrupted", ex);
+            }
+        } catch (RuntimeException ex) {
+            if (metrics != null) {
+                metrics.producerFailed();
+            }
+            failed("Producer threw exception", ex);
+        } finally {
+            completion.exit();
+        }
+    }
+    
+    /**
+     * Creates an unbatched production for a producer of a running service, or for the elements submitted to it.
+     * @param producer the producer's metrics slot; the last is shared by submissions and attached producers
+     */
+    Production<E> newProduction(int producer) {
+        return new Production<E>(buffer, 1, Long.MAX_VALUE, metrics, producer, completion, budget);
+    }
+    
+    /**
+     * @return the metrics slot shared by the submissions and attached producers of a running service
+     */
+    int sharedProducerSlot() {
+        return producers.size();
+    }
+    
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+    
+    /**
+     * Hands off any partial batches and places the end-of-stream markers for the consumers. Called once all 
+     * producers have finished, or a service has been shut down and its producers and submissions have finished.
+     */
+    void endOfStream() {
+        try {
+            if (!completion.isStopped()) {
+                for (Production<E> production : productions) {
+                    production.flushAll();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        int markers = elastic == null ? consumers.size() : 1;
+        for (int i = 0; i < markers && !completion.isStopped(); i++) {
+            putUninterruptibly(buffer, DONE);
+        }
+        stepDone();
+    }
+    
+    /**
+     * Stops processing once every consumer has finished, as nothing would take the elements which producers are 
+     * still putting. Called on the thread of the last consumer, which discards the entries left in the work queue, 
+     * so that the end-of-stream markers can still be placed.
+     */
+    private void consumerDone() {
+        if (consuming.decrementAndGet() == 0) {
+            completion.stop();
+            buffer.clear();
+        }
+    }
+    
+    /**
+     * Completes processing once every step has finished.
+     */
+    private void stepDone() {
+        if (remaining.decrementAndGet() == 0) {
+            if (ownsExecutor) {
+                ((ExecutorService) executor).shutdown();
+            }
+            completion.complete();
+        }
+    }
+    
+    /**
+     * Runs a consumer until its elements are exhausted. If it throws while processing an element, the element is 
+     * delivered again, up to the maximum number of attempts, and then passed to the dead-letter sink, after which 
+     * the consumer is restarted on the next element. If several of its iterators had elements in flight, each is 
+     * treated in this way. Otherwise, the failure is handled by the failure policy.
+     */
+    private void consume(Consumer consumer, Consumables<E> consumerView) {
+        while (true) {
+            try {
+                consumer.consume(consumerView);
+                return;
+            } catch(Exception ex) {
+                if (metrics != null) {
+                    metrics.consumerFailed();
+                }
+                List<Consumables.Delivery<E>> inFlight = consumerView.recover();
+                boolean handled = !inFlight.isEmpty();
+                for (Consumables.Delivery<E> delivery : inFlight) {
+                    if (delivery.attempts < maxAttempts) {
+                        consumerView.redeliver(delivery);
+                    } else if (deadLetters == null || !deadLetter(delivery.elements, ex)) {
+                        handled = false;
+                    }
+                }
+                if (handled) {
+                    continue;
+                }
+                failed("Consumer threw exception", ex);
+                if (!inFlight.isEmpty() && failurePolicy == FailurePolicy.COLLECT) {
+                    continue;
+                }
+                return;
+            }
+        }
+    }
+    
+    /**
+     * @return whether the elements were accepted by the dead-letter sink
+     */
+    private boolean deadLetter(List<E> elements, Exception cause) {
+        try {
+            for (E element : elements) {
+                deadLetters.deadLetter(element, cause);
+            }
+            return true;
+        } catch (RuntimeException ex) {
+            ex.addSuppressed(cause);
+            failed("Dead-letter sink threw exception", ex);
+            return false;
+        }
+    }
+    
+    /**
+     * Handles an exception thrown by a producer or consumer according to the failure policy.
+     */
+    private void failed(String message, Exception ex) {
+        switch (failurePolicy) {
+            case FAIL_FAST:
+                completion.failed(ex, true);
+                break;
+            case COLLECT:
+                completion.failed(ex, false);
+                break;
+            default:
+                Logger.getLogger(ProducerConsumer.class.getName()).log(Level.SEVERE, message, ex);
+        }
+    }
+    
+    /**
+     * Starts a consumer from the consumer factory, whose place in the elastic pool has already been reserved.
+     */
+    private void startElasticConsumer() {
+        final Consumer consumer = elastic.factory().newConsumer();
+        final Consumables<E> consumerView = new Consumables<E>(buffer, metrics, consumers.size(), elastic, true, completion, budget);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                completion.enter();
+                try {
+                    consume(consumer, consumerView);
+                } finally {
+                    completion.exit();
+                    if (!consumerView.isRetired() && elastic.exited()) {
+                        consumerDone();
+                        stepDone();
+                    }
+                }
+            }
+        });
+    }
+    
+    /**
+     * Starts a task which adds a consumer whenever the backlog is too deep, until all consumers have finished.
+     */
+    private void startScaling() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!elastic.isClosed()) {
+                        Thread.sleep(SCALING_INTERVAL_MILLIS);
+                        if (buffer.size() >= elastic.scaleUpQueueDepth() && elastic.tryGrow()) {
+                            startElasticConsumer();
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    // the executor is being shut down
+                }
+            }
+        });
+    }
+    
+    /**
+     * Puts an entry into the queue, waiting for space even if interrupted, and then restores the interrupt status. 
+     * Used for end-of-stream markers, without which consumers would wait forever.
+     */
+    static void putUninterruptibly(BlockingQueue<Object> queue, Object entry) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(entry);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
-        consumerLatch.await();
-        executor.shutdownNow();
     }
     
     /**
@@ -118,7 +498,29 @@ public class ProducerConsumer<E> {
         private final Collection<Producer<? extends E>> producers = new LinkedList<Producer<? extends E>>();
         private final Collection<Consumer<? super E>> consumers = new LinkedList<Consumer<? super E>>();
         
-        private int bufferSize = Integer.MAX_VALUE;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+        private QueueStrategy queueStrategy = QueueStrategy.LINKED;
+        private Executor executor = null;
+        private ThreadFactory threadFactory = null;
+        private boolean virtualThreads = false;
+        private boolean workStealing = false;
+        private KeyExtractor<? super E> keyExtractor = null;
+        private int batchSize = 1;
+        private long maxLingerNanos = Long.MAX_VALUE;
+        private Metrics metrics = null;
+        private ConsumerFactory<E> consumerFactory = null;
+        private int minConsumers;
+        private int maxConsumers;
+        private int scaleUpQueueDepth = 16;
+        private long consumerIdleTimeoutNanos = TimeUnit.SECONDS.toNanos(1);
+        private FailurePolicy failurePolicy = FailurePolicy.LOG;
+        private int maxAttempts = 1;
+        private DeadLetterSink<? super E> deadLetters = null;
+        private long maxWeight = Long.MAX_VALUE;
+        private Weigher<? super E> weigher = null;
+        private Path spillDirectory = null;
+        private Serializer<E> serializer = null;
+        private int spillSegmentSize = DEFAULT_SPILL_SEGMENT_SIZE;
         
         /**
          * Adds a producer to this instance
@@ -141,7 +543,31 @@ public class ProducerConsumer<E> {
         }
         
         /**
-         * Sets the maximum buffer size of the bounded-buffer (work queue). Defaults to {@link Integer#MAX_VALUE}.
+         * Adds a consumer which receives the elements in batches, alongside any other consumers. Each batch is 
+         * filled directly from the work queue: the consumer waits for the first element, takes whatever else is 
+         * already queued in bulk, and then waits for more until the batch is full or {@code maxWait} has passed 
+         * since the first element arrived. When retrying (see {@link #setRetries}), a batch on which the consumer 
+         * throws is delivered again as a whole, and its elements are passed to the dead-letter sink if every attempt 
+         * fails.
+         * @param consumer consumer to add
+         * @param maxBatchSize the maximum number of elements per batch
+         * @param maxWait how long to wait for a batch to fill
+         * @param unit the unit of {@code maxWait}
+         * @return this
+         */
+        public Builder<E> addBatchConsumer(BatchConsumer<? super E> consumer, int maxBatchSize, long maxWait, TimeUnit unit) {
+            if (maxBatchSize < 1) {
+                throw new IllegalArgumentException("maxBatchSize must be positive");
+            }
+            consumers.add(new BatchConsumerAdapter<E>((BatchConsumer<E>) consumer, maxBatchSize, unit.toNanos(maxWait)));
+            return this;
+        }
+        
+        /**
+         * Sets the maximum buffer size of the bounded-buffer (work queue), in entries. Defaults to 
+         * {@value ProducerConsumer#DEFAULT_BUFFER_SIZE}, so that producers which outpace the consumers cannot exhaust 
+         * memory. {@link Integer#MAX_VALUE} leaves a {@link QueueStrategy#LINKED} queue unbounded. When elements 
+         * vary greatly in size, bound their total size with {@link #setMaxWeight} instead.
          * @param bufferSize
          * @return this
          */
@@ -150,11 +576,307 @@ public class ProducerConsumer<E> {
             return this;
         }
         
+        /**
+         * Sets the kind of work queue to use. Defaults to {@link QueueStrategy#LINKED}. The preallocated strategies 
+         * use a capacity of {@value QueueStrategy#DEFAULT_PREALLOCATED_CAPACITY} if the buffer size is set to 
+         * {@link Integer#MAX_VALUE}.
+         * @param queueStrategy
+         * @return this
+         */
+        public Builder<E> setQueueStrategy(QueueStrategy queueStrategy) {
+            this.queueStrategy = queueStrategy;
+            return this;
+        }
+        
+        /**
+         * Runs producers and consumers on the given executor instead of the shared pool. The executor is owned by 
+         * the caller and is not shut down. It must be able to run every producer and consumer at the same time, or 
+         * {@link ProducerConsumer#begin()} may never return.
+         * @param executor
+         * @return this
+         */
+        public Builder<E> setExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+        
+        /**
+         * Runs producers and consumers on threads created by the given factory instead of the shared pool. The 
+         * threads are discarded when {@link ProducerConsumer#begin()} returns.
+         * @param threadFactory
+         * @return this
+         */
+        public Builder<E> setThreadFactory(ThreadFactory threadFactory) {
+            this.threadFactory = threadFactory;
+            return this;
+        }
+        
+        /**
+         * Runs each producer and consumer on its own virtual thread instead of the shared pool. Suited to producers 
+         * and consumers which spend most of their time blocked on I/O. Requires Java 21 or later; {@link #build()} 
+         * throws {@code UnsupportedOperationException} on earlier versions.
+         * @return this
+         */
+        public Builder<E> useVirtualThreads() {
+            this.virtualThreads = true;
+            return this;
+        }
+        
+        /**
+         * Gives each consumer its own work queue instead of sharing one, so that many consumers do not contend on 
+         * a single queue. Producing threads put into the consumers' inboxes in turn. A consumer moves elements from 
+         * its inbox into a work-stealing deque and takes the newest first, while a consumer with nothing left steals 
+         * the oldest from the others. The buffer size is divided evenly between the consumers, and the queue 
+         * strategy is ignored. As with {@link QueueStrategy#RING_BUFFER}, waiting producers and consumers spin before 
+         * parking, and each consumer must iterate its elements on one thread at a time.
+         * @return this
+         */
+        public Builder<E> useWorkStealing() {
+            this.workStealing = true;
+            return this;
+        }
+        
+        /**
+         * Partitions the elements between the consumers by key. Each element is routed to a consumer chosen by the 
+         * hash of its key, and each consumer has a work queue of its own, so all elements with the same key are 
+         * consumed by the same consumer, in the order in which each producing thread put them. A consumer may 
+         * therefore keep state per key without synchronization. An uneven distribution of keys leads to uneven 
+         * work, as consumers do not take each other's elements.<br/><br/>The buffer size is divided evenly between 
+         * the consumers' queues, each of which is of the kind set by {@link #setQueueStrategy}. Cannot be combined 
+         * with batching, work stealing or a consumer factory.
+         * @param keyExtractor extracts the key of each non-null element
+         * @return this
+         */
+        public Builder<E> setKeyExtractor(KeyExtractor<? super E> keyExtractor) {
+            this.keyExtractor = keyExtractor;
+            return this;
+        }
+        
+        /**
+         * Sets the number of elements each producing thread accumulates before handing them to the work queue as a 
+         * single entry. Consumers take whole batches from the queue and iterate them locally, so the cost of the queue 
+         * hand-off is paid once per batch rather than once per element. Partial batches are handed off when a 
+         * {@link Producer} returns. When batching, the buffer size bounds the number of batches in the work queue. 
+         * Defaults to 1 (no batching).
+         * @param batchSize
+         * @return this
+         */
+        public Builder<E> setBatchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+        
+        /**
+         * Sets the maximum time an element may wait in a partial batch. The age of a batch is checked each time an 
+         * element is added to it, so a producer which stops putting elements holds its partial batch until it 
+         * returns. Has no effect unless a batch size greater than 1 is set. Defaults to no limit.
+         * @param maxLinger
+         * @param unit
+         * @return this
+         */
+        public Builder<E> setMaxLinger(long maxLinger, TimeUnit unit) {
+            this.maxLingerNanos = unit.toNanos(maxLinger);
+            return this;
+        }
+        
+        /**
+         * Adds consumers on demand, in addition to any added with {@link #addConsumer}. {@code minConsumers} 
+         * consumers are started at the beginning. Whenever the work queue holds at least the scale-up queue depth 
+         * (see {@link #setScaleUpQueueDepth}), another consumer is created by the factory, up to 
+         * {@code maxConsumers}. A consumer which waits for an element for longer than the idle timeout (see 
+         * {@link #setConsumerIdleTimeout}) is retired, unless only {@code minConsumers} remain: its iteration ends and 
+         * its thread is returned to the executor.
+         * @param consumerFactory creates the consumers to add
+         * @param minConsumers the number of consumers to keep running, at least 1
+         * @param maxConsumers the maximum number of consumers created by the factory to run at once
+         * @return this
+         */
+        public Builder<E> setConsumerFactory(ConsumerFactory<E> consumerFactory, int minConsumers, int maxConsumers) {
+            if (minConsumers < 1 || maxConsumers < minConsumers) {
+                throw new IllegalArgumentException("Require 1 <= minConsumers <= maxConsumers");
+            }
+            this.consumerFactory = consumerFactory;
+            this.minConsumers = minConsumers;
+            this.maxConsumers = maxConsumers;
+            return this;
+        }
+        
+        /**
+         * Sets the number of entries in the work queue at or above which a consumer is added. Has no effect unless a 
+         * consumer factory is set. Defaults to 16.
+         * @param scaleUpQueueDepth
+         * @return this
+         */
+        public Builder<E> setScaleUpQueueDepth(int scaleUpQueueDepth) {
+            this.scaleUpQueueDepth = scaleUpQueueDepth;
+            return this;
+        }
+        
+        /**
+         * Sets how long a consumer created by the consumer factory may wait for an element before it is retired. Has 
+         * no effect unless a consumer factory is set. Defaults to 1 second.
+         * @param idleTimeout
+         * @param unit
+         * @return this
+         */
+        public Builder<E> setConsumerIdleTimeout(long idleTimeout, TimeUnit unit) {
+            this.consumerIdleTimeoutNanos = unit.toNanos(idleTimeout);
+            return this;
+        }
+        
+        /**
+         * Bounds the total weight of the elements which have been put but not yet taken by a consumer, in addition 
+         * to the buffer size. {@link Production#put} waits while adding an element would exceed the maximum, so that 
+         * the memory held by waiting elements stays predictable when their sizes vary widely. An element heavier 
+         * than the maximum is admitted once no other element is waiting. Elements held in partial batches count 
+         * towards the weight. Disabled by default.
+         * @param maxWeight the maximum total weight, e.g. in bytes
+         * @param weigher computes the weight of each non-null element
+         * @return this
+         */
+        public Builder<E> setMaxWeight(long maxWeight, Weigher<? super E> weigher) {
+            if (maxWeight < 1) {
+                throw new IllegalArgumentException("maxWeight must be positive");
+            }
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+            return this;
+        }
+        
+        /**
+         * Spills the work queue to disk instead of making producers wait when it is full. Up to the buffer size of 
+         * entries are held in memory; further entries are serialized and appended to memory-mapped segment files in 
+         * the given directory, and read back in order as consumers catch up. Each segment file is deleted once it 
+         * has been read. Suited to producers which read from a source that cannot be paused and may outrun the 
+         * consumers for a long time, as memory use stays bounded while producers never wait. The queue strategy is 
+         * ignored. Cannot be combined with work stealing or a key extractor. If a maximum weight is also set, 
+         * producers still wait for it, and the weigher must give a deserialized element the same weight as the 
+         * original.
+         * @param spillDirectory an existing directory on local disk
+         * @param serializer converts the non-null elements to and from bytes
+         * @return this
+         */
+        public Builder<E> setSpillDirectory(Path spillDirectory, Serializer<E> serializer) {
+            this.spillDirectory = spillDirectory;
+            this.serializer = serializer;
+            return this;
+        }
+        
+        /**
+         * Sets the size of each segment file to which the work queue spills. An entry larger than this gets a segment 
+         * of its own. Has no effect unless a spill directory is set. Defaults to 
+         * {@value ProducerConsumer#DEFAULT_SPILL_SEGMENT_SIZE} bytes.
+         * @param spillSegmentSize
+         * @return this
+         */
+        public Builder<E> setSpillSegmentSize(int spillSegmentSize) {
+            if (spillSegmentSize < 1) {
+                throw new IllegalArgumentException("spillSegmentSize must be positive");
+            }
+            this.spillSegmentSize = spillSegmentSize;
+            return this;
+        }
+        
+        /**
+         * Sets what happens when a producer or consumer throws an exception. Defaults to {@link FailurePolicy#LOG}.
+         * @param failurePolicy
+         * @return this
+         */
+        public Builder<E> setFailurePolicy(FailurePolicy failurePolicy) {
+            this.failurePolicy = failurePolicy;
+            return this;
+        }
+        
+        /**
+         * Retries elements on which a consumer throws an exception. A consumer which throws after taking an element 
+         * and before asking for the next one is given the same element again, up to {@code maxAttempts} times in 
+         * all. An element which fails on every attempt is passed to the dead-letter sink, and the consumer carries on 
+         * with the next element; the failure is then not subject to the failure policy. Without a sink, the last 
+         * failure is handled by the failure policy. Consumers should therefore not have partially processed an 
+         * element in a way which cannot be repeated. Defaults to a single attempt and no sink.
+         * @param maxAttempts the number of times to deliver each element, at least 1
+         * @param deadLetters receives the elements which failed on every attempt, or {@code null}
+         * @return this
+         */
+        public Builder<E> setRetries(int maxAttempts, DeadLetterSink<? super E> deadLetters) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be positive");
+            }
+            this.maxAttempts = maxAttempts;
+            this.deadLetters = deadLetters;
+            return this;
+        }
+        
+        /**
+         * Records runtime statistics into the given instance, which may only be used by one 
+         * {@code ProducerConsumer}. Disabled by default.
+         * @param metrics
+         * @return this
+         */
+        public Builder<E> setMetrics(Metrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+        
         /**
          * @return a new instance of {@code ProducerConsumer} configured by this {@code Builder}.
+         * @throws UnsupportedOperationException if virtual threads were requested but are not supported
+         * @throws IllegalStateException if a key extractor is combined with batching, work stealing or a consumer 
+         * factory, or no consumers were added to partition between, or if spilling is combined with work stealing 
+         * or a key extractor
          */
         public ProducerConsumer<E> build() {
-            return new ProducerConsumer<E>(producers, consumers, new LinkedBlockingQueue<Item<E>>(bufferSize));
+            BlockingQueue<Object> buffer;
+            if (spillDirectory != null) {
+                if (workStealing || keyExtractor != null) {
+                    throw new IllegalStateException("Spilling cannot be combined with work stealing or partitioning");
+                }
+                buffer = new SpillingQueue(bufferSize == Integer.MAX_VALUE ? DEFAULT_BUFFER_SIZE : bufferSize, 
+                        spillDirectory, spillSegmentSize, (Serializer<Object>) serializer);
+            } else if (keyExtractor != null) {
+                if (batchSize > 1 || workStealing || consumerFactory != null) {
+                    throw new IllegalStateException("Partitioning cannot be combined with batching, work stealing or a consumer factory");
+                }
+                if (consumers.isEmpty()) {
+                    throw new IllegalStateException("No consumers to partition between");
+                }
+                buffer = new PartitionedQueue(consumers.size(), bufferSize, queueStrategy, singleProducer(), 
+                        (KeyExtractor<Object>) keyExtractor);
+            } else if (workStealing) {
+                buffer = new WorkStealingQueue(Math.max(1, consumers.size()), bufferSize);
+            } else {
+                buffer = queueStrategy.newQueue(bufferSize, singleProducer(), consumers.size() == 1 && consumerFactory == null);
+            }
+            if (executor != null) {
+                return new ProducerConsumer<E>(this, buffer, executor, false);
+            }
+            if (virtualThreads) {
+                return new ProducerConsumer<E>(this, buffer, ThreadPools.newVirtualThreadExecutor(), true);
+            }
+            if (threadFactory != null) {
+                return new ProducerConsumer<E>(this, buffer, Executors.newCachedThreadPool(threadFactory), true);
+            }
+            return new ProducerConsumer<E>(this, buffer, ThreadPools.shared(), false);
+        }
+        
+        /**
+         * @return whether only the single producer puts into the work queue. Consumers also put into it when they 
+         * pass on the end-of-stream marker to the consumers created by a factory, or put back other consumers' 
+         * markers after draining them with a batch or setting them aside to retry, which they may do concurrently.
+         */
+        private boolean singleProducer() {
+            if (producers.size() != 1 || consumerFactory != null || maxAttempts > 1) {
+                return false;
+            }
+            for (Consumer<? super E> consumer : consumers) {
+                if (consumer instanceof BatchConsumerAdapter) {
+                    return false;
+                }
+            }
+            return true;
         }
         
     }
@@ -16,29 +16,205 @@
 
 package org.knoesis.util.concurrent.producerconsumer;
 
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A write-only view of the underlying work queue.
  * @author Alan Smith
  */
 public class Production<E> {
-    
-    private final BlockingQueue<Item<E>> queue;
-    
-    Production(BlockingQueue<Item<E>> queue) {
+
+    private final BlockingQueue<Object> queue;
+    private final int batchSize;
+    private final long maxLingerNanos;
+    private final Metrics metrics;
+    private final int producer;
+    private final Completion completion;
+    private final WeightBudget budget;
+    private int handOffs = 0;
+    private volatile boolean closed = false;
+    private final ThreadLocal<Batcher> batchers = new ThreadLocal<Batcher>();
+    private final Queue<Batcher> allBatchers = new ConcurrentLinkedQueue<Batcher>();
+
+    Production(BlockingQueue<Object> queue) {
+        this(queue, 1, Long.MAX_VALUE, null, 0, null, null);
+    }
+
+    /**
+     * @param metrics the metrics to update, or {@code null}
+     * @param producer the index of the producer which puts into this instance
+     * @param completion the handle to report progress to and check for cancellation, or {@code null}
+     * @param budget the weight budget to claim each element's weight from, or {@code null}
+     */
+    Production(BlockingQueue<Object> queue, int batchSize, long maxLingerNanos, Metrics metrics, int producer, Completion completion, WeightBudget budget) {
         this.queue = queue;
+        this.batchSize = batchSize;
+        this.maxLingerNanos = maxLingerNanos;
+        this.metrics = metrics;
+        this.producer = producer;
+        this.completion = completion;
+        this.budget = budget;
     }
-    
+
     /**
-     * Places an element into the work queue for consumption by 
-     * {@link Consumer}s.
+     * Places an element into the work queue for consumption by
+     * {@link Consumer}s. If batching is enabled, the element is held in a
+     * batch belonging to the calling thread until the batch is full or the
+     * {@link Producer} returns. The maximum linger time is only checked when
+     * the thread puts an element, so a thread which stops putting holds its
+     * partial batch until the producer returns. If a maximum weight is set,
+     * waits until the element's weight fits in it.
      * @param element the element to produce
-     * @throws InterruptedException if the calling thread is interrupted while 
-     * waiting for an empty slot in the queue.
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for an empty slot in the queue, processing has been stopped
+     * by cancellation, failure or every consumer finishing, or the producer
+     * has been detached from a {@link Service}.
      */
     public void put(E element) throws InterruptedException {
-        queue.put(new Item<E>(element));
+        checkOpen();
+        if (budget != null && element != null) {
+            long weight = budget.weigh(element);
+            if (!budget.tryAcquire(weight)) {
+                // the weight held by this thread's partial batch may be what is needed
+                flush();
+                budget.acquire(weight);
+            }
+        }
+        if (batchSize <= 1) {
+            handOff(element == null ? ProducerConsumer.NULL : element, 1);
+            return;
+        }
+        Batcher batcher = batchers.get();
+        if (batcher == null) {
+            batcher = new Batcher();
+            batchers.set(batcher);
+            allBatchers.add(batcher);
+        }
+        batcher.add(element);
+    }
+
+    /**
+     * Places an element into the work queue without batching, waiting at most
+     * the given time for its weight to fit and for an empty slot.
+     * @return whether the element was placed
+     */
+    boolean offer(E element, long timeoutNanos) throws InterruptedException {
+        checkOpen();
+        long deadline = System.nanoTime() + timeoutNanos;
+        boolean weighed = budget != null && element != null;
+        if (weighed && !budget.tryAcquire(budget.weigh(element), timeoutNanos)) {
+            return false;
+        }
+        if (!queue.offer(element == null ? ProducerConsumer.NULL : element, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+            if (weighed) {
+                budget.release(element);
+            }
+            return false;
+        }
+        if (completion != null) {
+            completion.produced(1);
+        }
+        if (metrics != null) {
+            metrics.produced(producer, 1);
+        }
+        return true;
+    }
+    
+    private void checkOpen() throws InterruptedException {
+        if (completion != null && completion.isStopped()) {
+            throw new InterruptedException("Processing has stopped");
+        }
+        if (closed) {
+            throw new InterruptedException("Producer was detached");
+        }
+    }
+    
+    /**
+     * Makes further calls to {@link #put} throw, as the producer has been detached.
+     */
+    void close() {
+        closed = true;
+    }
+    
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Places an entry into the work queue, recording metrics if enabled.
+     * @param count the number of elements the entry holds
+     */
+    private void handOff(Object entry, int count) throws InterruptedException {
+        if (metrics == null) {
+            queue.put(entry);
+            if (completion != null) {
+                completion.produced(count);
+            }
+            return;
+        }
+        if (!queue.offer(entry)) {
+            long start = System.nanoTime();
+            queue.put(entry);
+            metrics.producerBlocked(System.nanoTime() - start);
+        }
+        if (completion != null) {
+            completion.produced(count);
+        }
+        metrics.produced(producer, count);
+        if (++handOffs % Metrics.QUEUE_SAMPLE_INTERVAL == 0) {
+            metrics.sampleQueueSize();
+        }
+    }
+
+    /**
+     * Hands the calling thread's partial batch, if any, to the consumers.
+     */
+    void flush() throws InterruptedException {
+        Batcher batcher = batchers.get();
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Hands every thread's partial batch to the consumers. Must only be called
+     * once all threads which put elements have finished.
+     */
+    void flushAll() throws InterruptedException {
+        for (Batcher batcher : allBatchers) {
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Accumulates the elements put by a single thread.
+     */
+    private class Batcher {
+
+        private Batch<E> batch = new Batch<E>(batchSize);
+
+        void add(E element) throws InterruptedException {
+            if (batch.isFull()) {
+                // left full by an interrupted hand-off
+                flush();
+            }
+            batch.add(element);
+            if (batch.isFull() || (maxLingerNanos != Long.MAX_VALUE && System.nanoTime() - batch.started() >= maxLingerNanos)) {
+                flush();
+            }
+        }
+
+        void flush() throws InterruptedException {
+            if (!batch.isEmpty()) {
+                // kept until handed off, so that an interrupted producer's batch is handed off again by flushAll()
+                handOff(batch, batch.size());
+                batch = new Batch<E>(batchSize);
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The kind of bounded-buffer (work queue) used to hand elements from {@link Producer}s to {@link Consumer}s.
+ * @author Alan Smith
+ */
+public enum QueueStrategy {
+    
+    /**
+     * A linked queue guarded by separate locks for insertion and removal. Allocates a node per element, but may be 
+     * unbounded. This is the default.
+     */
+    LINKED,
+    
+    /**
+     * A preallocated, array-backed queue guarded by a single lock.
+     */
+    ARRAY,
+    
+    /**
+     * A preallocated, array-backed ring buffer which uses no locks. Its capacity is rounded up to a power of two. 
+     * If exactly one {@link Producer} (or {@link Consumer}) is added, a variant which assumes a single producing 
+     * (or consuming) thread is used, so a {@code Producer} must then only call {@link Production#put} from the thread 
+     * on which it was invoked, and a {@code Consumer} must only iterate from the thread on which it was invoked.
+     * Waiting producers and consumers spin before parking, trading CPU time for hand-off latency.
+     */
+    RING_BUFFER;
+    
+    /**
+     * Capacity used by the preallocated strategies when the buffer size is unbounded.
+     */
+    static final int DEFAULT_PREALLOCATED_CAPACITY = 1024;
+    
+    /**
+     * Creates a work queue of this kind.
+     * @param bufferSize the maximum number of entries, or {@link Integer#MAX_VALUE} for the default
+     * @param singleProducer whether at most one thread at a time will put into the queue
+     * @param singleConsumer whether at most one thread at a time will take from the queue
+     */
+    BlockingQueue<Object> newQueue(int bufferSize, boolean singleProducer, boolean singleConsumer) {
+        int capacity = bufferSize == Integer.MAX_VALUE ? DEFAULT_PREALLOCATED_CAPACITY : bufferSize;
+        switch (this) {
+            case ARRAY:
+                return new ArrayBlockingQueue<Object>(capacity);
+            case RING_BUFFER:
+                return new RingBufferQueue<Object>(capacity, singleProducer, singleConsumer);
+            default:
+                return new LinkedBlockingQueue<Object>(bufferSize);
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Restores the order of a stream whose elements were processed concurrently. Each input element, identified by its 
+ * sequence number, is completed with the (zero or more) outputs it produced; outputs are put into the output queue 
+ * once every earlier input has been completed.<br/><br/>At most {@code window} inputs may be completed ahead of the 
+ * oldest incomplete one. A thread completing an input further ahead waits, so a single slow element holds back the 
+ * threads which have overtaken it rather than letting their outputs accumulate.
+ * @author Alan Smith
+ */
+final class ReorderBuffer {
+    
+    private final Object[] slots;
+    private final BlockingQueue<Object> output;
+    private final boolean sequenced;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    private long next = 0;
+    private long released = 0;
+
+    /**
+     * @param window the maximum number of inputs which may be completed out of order
+     * @param output the queue to release outputs into
+     * @param sequenced whether outputs are released as {@link Sequenced} entries, for a further reorder downstream
+     */
+    ReorderBuffer(int window, BlockingQueue<Object> output, boolean sequenced) {
+        this.slots = new Object[window];
+        this.output = output;
+        this.sequenced = sequenced;
+    }
+    
+    /**
+     * Completes an input, releasing its outputs and those of any inputs completed after it if it is the oldest 
+     * incomplete input.
+     * @param sequence the input's sequence number
+     * @param outputs the outputs the input produced, in order
+     * @throws InterruptedException if the calling thread is interrupted while waiting for space in the window or in 
+     * the output queue
+     */
+    void complete(long sequence, List<Object> outputs) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (sequence - next >= slots.length) {
+                advanced.await();
+            }
+            slots[index(sequence)] = outputs;
+            if (sequence != next) {
+                return;
+            }
+            List<Object> ready;
+            while ((ready = (List<Object>) slots[index(next)]) != null) {
+                slots[index(next)] = null;
+                for (Object element : ready) {
+                    if (sequenced) {
+                        output.put(new Sequenced(released++, element));
+                    } else {
+                        output.put(element == null ? ProducerConsumer.NULL : element);
+                    }
+                }
+                next++;
+            }
+            advanced.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private int index(long sequence) {
+        return (int) (sequence % slots.length);
+    }
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, preallocated, array-backed {@link BlockingQueue} which uses no locks. Each slot carries a sequence 
+ * number recording whether it is ready to be written or read for a given lap of the ring, so producers and consumers 
+ * only contend on the slot they claim. When the queue is known to have a single producing (or consuming) thread at a 
+ * time, claiming a slot on that side is a plain ordered write rather than a compare-and-set.<br/><br/>
+ * Blocking operations spin briefly, then yield, then park for increasing intervals while waiting. The iterator is 
+ * not supported.
+ * @author Alan Smith
+ */
+final class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final Sequence tail = new Sequence(0);
+    private final Sequence head = new Sequence(0);
+    private boolean singleProducer;
+    private final boolean singleConsumer;
+
+    /**
+     * @param capacity the capacity, rounded up to the next power of two
+     * @param singleProducer whether at most one thread at a time will insert elements
+     * @param singleConsumer whether at most one thread at a time will remove elements
+     */
+    RingBufferQueue(int capacity, boolean singleProducer, boolean singleConsumer) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.elements = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.singleProducer = singleProducer;
+        this.singleConsumer = singleConsumer;
+    }
+
+    /**
+     * Makes inserting safe for several threads at a time, for a queue created for a single producer. Must be called 
+     * before any element is inserted, and the queue must then be safely published to the inserting threads.
+     */
+    void shareProducers() {
+        singleProducer = false;
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (singleProducer) {
+                    tail.setOrdered(position + 1);
+                    break;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+            position = tail.get();
+        }
+        elements[index] = e;
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    @Override
+    public E poll() {
+        long position = head.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (singleConsumer) {
+                    head.setOrdered(position + 1);
+                    break;
+                }
+                if (head.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                return null;
+            }
+            position = head.get();
+        }
+        E e = (E) elements[index];
+        elements[index] = null;
+        sequences.lazySet(index, position + mask + 1);
+        return e;
+    }
+
+    @Override
+    public E peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        return (E) elements[index];
+    }
+
+    @Override
+    public void put(E e) throws InterruptedException {
+        int tries = 0;
+        while (!offer(e)) {
+            tries = idle(tries);
+        }
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            tries = idle(tries);
+        }
+        return true;
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        int tries = 0;
+        E e;
+        while ((e = poll()) == null) {
+            tries = idle(tries);
+        }
+        return e;
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        E e;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            tries = idle(tries);
+        }
+        return e;
+    }
+    
+    /**
+     * Waits a little while for the other side of the queue to make progress.
+     * @param tries the number of times the caller has waited so far
+     * @return the number of times the caller has waited, including this one
+     */
+    static int idle(int tries) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if (tries < SPIN_TRIES) {
+            // busy spin
+        } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1L << Math.min(tries - SPIN_TRIES - YIELD_TRIES, 20)));
+        }
+        return tries + 1;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return elements.length - size();
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        E e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        while (true) {
+            long before = head.get();
+            long current = tail.get();
+            if (head.get() == before) {
+                return (int) Math.max(0, Math.min(current - before, elements.length));
+            }
+        }
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        throw new UnsupportedOperationException();
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Coordinates access to the slots of a ring buffer whose storage is held elsewhere (e.g. in an {@code int[]}), using 
+ * the same per-slot sequence numbers as {@link RingBufferQueue}. A writer claims a position, stores its value at 
+ * {@link #index} and publishes the position; a reader claims a published position, loads its value and releases the 
+ * position. Instead of an end-of-stream marker, which a primitive value cannot represent, the sequencer is closed once 
+ * all writers have finished.
+ * @author Alan Smith
+ */
+final class RingSequencer {
+    
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final Sequence tail = new Sequence(0);
+    private final Sequence head = new Sequence(0);
+    private final boolean singleProducer;
+    private final boolean singleConsumer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity the capacity, rounded up to the next power of two
+     * @param singleProducer whether at most one thread at a time will write
+     * @param singleConsumer whether at most one thread at a time will read
+     */
+    RingSequencer(int capacity, boolean singleProducer, boolean singleConsumer) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.singleProducer = singleProducer;
+        this.singleConsumer = singleConsumer;
+    }
+    
+    /**
+     * @return the length the storage array must have
+     */
+    int capacity() {
+        return mask + 1;
+    }
+    
+    int index(long position) {
+        return (int) position & mask;
+    }
+    
+    /**
+     * Waits for a free slot and claims it for writing.
+     * @return the claimed position
+     */
+    long claimWrite() throws InterruptedException {
+        int tries = 0;
+        long position;
+        while ((position = tryClaimWrite()) < 0) {
+            tries = RingBufferQueue.idle(tries);
+        }
+        return position;
+    }
+    
+    /**
+     * @return the claimed position, or -1 if the ring is full
+     */
+    long tryClaimWrite() {
+        long position = tail.get();
+        while (true) {
+            long difference = sequences.get(index(position)) - position;
+            if (difference == 0) {
+                if (singleProducer) {
+                    tail.setOrdered(position + 1);
+                    return position;
+                }
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                return -1;
+            }
+            position = tail.get();
+        }
+    }
+    
+    /**
+     * Makes the value stored at a claimed position visible to readers.
+     */
+    void publish(long position) {
+        sequences.lazySet(index(position), position + 1);
+    }
+    
+    /**
+     * Waits for a published slot and claims it for reading.
+     * @return the claimed position, or -1 if the sequencer is closed and every published slot has been read
+     */
+    long claimRead() throws InterruptedException {
+        int tries = 0;
+        long position;
+        while ((position = tryClaimRead()) < 0) {
+            if (closed) {
+                return tryClaimRead();
+            }
+            tries = RingBufferQueue.idle(tries);
+        }
+        return position;
+    }
+    
+    /**
+     * @return the claimed position, or -1 if no published slot is available
+     */
+    long tryClaimRead() {
+        long position = head.get();
+        while (true) {
+            long difference = sequences.get(index(position)) - (position + 1);
+            if (difference == 0) {
+                if (singleConsumer) {
+                    head.setOrdered(position + 1);
+                    return position;
+                }
+                if (head.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (difference < 0) {
+                return -1;
+            }
+            position = head.get();
+        }
+    }
+    
+    /**
+     * Returns a slot whose value has been read to the writers.
+     */
+    void release(long position) {
+        sequences.lazySet(index(position), position + mask + 1);
+    }
+    
+    /**
+     * Signals that no more values will be written. Must only be called once all writers have finished.
+     */
+    void close() {
+        closed = true;
+    }
+
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A counter padded to occupy its own cache line, so that threads updating neighbouring counters (e.g. the head and 
+ * tail of a {@link RingBufferQueue}) do not invalidate each other's caches.
+ * @author Alan Smith
+ */
+final class Sequence extends SequenceValue {
+    
+    protected long p9, p10, p11, p12, p13, p14, p15;
+    
+    private static final AtomicLongFieldUpdater<SequenceValue> UPDATER = AtomicLongFieldUpdater.newUpdater(SequenceValue.class, "value");
+    
+    Sequence(long initial) {
+        value = initial;
+    }
+    
+    long get() {
+        return value;
+    }
+    
+    /**
+     * Sets the value with a full fence, so that it is visible to other threads before any later read by this one.
+     */
+    void set(long newValue) {
+        value = newValue;
+    }
+    
+    /**
+     * Sets the value without a full fence. Only suitable when a single thread writes this sequence.
+     */
+    void setOrdered(long newValue) {
+        UPDATER.lazySet(this, newValue);
+    }
+    
+    boolean compareAndSet(long expected, long newValue) {
+        return UPDATER.compareAndSet(this, expected, newValue);
+    }
+
+}
+
+class SequencePadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class SequenceValue extends SequencePadding {
+    protected volatile long value;
+}
@@ -14,22 +14,21 @@
  * limitations under the License.
  */
 
+
 package org.knoesis.util.concurrent.producerconsumer;
 
 /**
- *
+ * An element which travels through the work queue together with its position in the stream.
  * @author Alan Smith
  */
-final class Item<E> {
-    
-    private final E item;
+final class Sequenced {
     
-    public Item(E item) {
-        this.item = item;
-    }
-    
-    public E get() {
-        return item;
+    final long sequence;
+    final Object element;
+
+    Sequenced(long sequence, Object element) {
+        this.sequence = sequence;
+        this.element = element;
     }
 
 }
@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts elements to and from bytes, so that they can be spilled to disk. See 
+ * {@link ProducerConsumer.Builder#setSpillDirectory}.
+ * @author Alan Smith
+ */
+public interface Serializer<E> {
+    
+    /**
+     * @param element a non-null element
+     * @return the bytes from which {@link #deserialize} recreates the element
+     */
+    byte[] serialize(E element);
+    
+    /**
+     * Recreates an element from the bytes returned by {@link #serialize}.
+     * @param bytes a read-only buffer whose remaining bytes are those of one element. It may be a view of a 
+     * memory-mapped file, so it must not be used after this method returns.
+     * @return the element
+     */
+    E deserialize(ByteBuffer bytes);
+
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A handle on a {@link ProducerConsumer} which has been started by {@link ProducerConsumer#startService()}. Its 
+ * consumers keep running until the service is shut down, taking the elements submitted by any thread and those put 
+ * by the producers attached to it. Once shut down, the service accepts no more elements or producers, waits for the 
+ * attached producers to return, and terminates after the consumers have taken every element already queued.
+ * <br/><br/>Example usage:<br/><br/>
+ * <pre>
+ * {@code
+ *  Service<Request> service = ProducerConsumer.<Request>newBuilder()
+ *      .addConsumer(new RequestHandler())
+ *      .addConsumer(new RequestHandler())
+ *      .build()
+ *      .startService();
+ *  service.attach(new QueueListener());
+ *  if (!service.offer(request, 100, TimeUnit.MILLISECONDS)) {
+ *      reject(request);
+ *  }
+ *  ...
+ *  service.shutdown();
+ *  service.awaitTermination(1, TimeUnit.MINUTES);
+ * }
+ * </pre>
+ * @author Alan Smith
+ */
+public final class Service<E> {
+    
+    private final ProducerConsumer<E> producerConsumer;
+    private final Production<E> submissions;
+    private final Completion completion;
+    private final List<Attachment> attachments = new ArrayList<Attachment>();
+    private final AtomicBoolean shutdown = new AtomicBoolean();
+    
+    /**
+     * Counts the submissions and attached producers in progress, plus one until the service is shut down. The end 
+     * of the stream is signalled when it reaches zero, after which it never increases.
+     */
+    private final AtomicInteger users = new AtomicInteger(1);
+
+    /**
+     * @param submissions the unbatched production through which elements are submitted
+     */
+    Service(ProducerConsumer<E> producerConsumer, Production<E> submissions, Completion completion) {
+        this.producerConsumer = producerConsumer;
+        this.submissions = submissions;
+        this.completion = completion;
+    }
+    
+    /**
+     * Places an element into the work queue, waiting for space if necessary.
+     * @param element the element to submit
+     * @throws InterruptedException if the calling thread is interrupted while waiting, or processing has stopped 
+     * because it was cancelled, failed fast or lost all of its consumers
+     * @throws IllegalStateException if the service has been shut down
+     */
+    public void submit(E element) throws InterruptedException {
+        enter();
+        try {
+            submissions.put(element);
+        } finally {
+            leave();
+        }
+    }
+    
+    /**
+     * Places an element into the work queue if there is space for it within the given time.
+     * @param element the element to submit
+     * @param timeout how long to wait for space
+     * @param unit the unit of {@code timeout}
+     * @return false if there was no space in time
+     * @throws InterruptedException if the calling thread is interrupted while waiting, or processing has stopped 
+     * because it was cancelled, failed fast or lost all of its consumers
+     * @throws IllegalStateException if the service has been shut down
+     */
+    public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException {
+        enter();
+        try {
+            return submissions.offer(element, unit.toNanos(timeout));
+        } finally {
+            leave();
+        }
+    }
+    
+    /**
+     * Starts a producer on a thread of its own. It runs until it returns or is detached, and its metrics are 
+     * recorded in the last producer slot. Its elements are not batched, as for every producer of a service. A 
+     * producer may be attached more than once.
+     * @param producer the producer to start
+     * @throws IllegalStateException if the service has been shut down
+     */
+    public void attach(Producer<? extends E> producer) {
+        attach(producer, producerConsumer.newProduction(producerConsumer.sharedProducerSlot()));
+    }
+    
+    void attach(Producer<? extends E> producer, Production<E> production) {
+        enter();
+        Attachment attachment = new Attachment(producer, production);
+        synchronized (attachments) {
+            attachments.add(attachment);
+        }
+        try {
+            producerConsumer.execute(attachment);
+        } catch (RejectedExecutionException ex) {
+            attachment.finished();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Stops a producer which was attached. Its further calls to {@link Production#put} throw 
+     * {@code InterruptedException} and its thread is interrupted, so that it returns; the elements it has already 
+     * put are still consumed.
+     * @param producer a producer passed to {@link #attach}
+     * @return false if the producer was not running, e.g. because it had already returned
+     */
+    public boolean detach(Producer<?> producer) {
+        boolean detached = false;
+        synchronized (attachments) {
+            for (Attachment attachment : attachments) {
+                if (attachment.producer == producer) {
+                    attachment.detach();
+                    detached = true;
+                }
+            }
+        }
+        return detached;
+    }
+    
+    /**
+     * Stops accepting elements and producers. Attached producers run until they return, and the consumers then 
+     * take every element which has been queued before they finish. Does not wait; see {@link #awaitTermination}. 
+     * Has no effect if already shut down.
+     */
+    public void shutdown() {
+        if (shutdown.compareAndSet(false, true)) {
+            leave();
+        }
+    }
+    
+    /**
+     * Shuts down and cancels processing: attached producers and running consumers are interrupted, and elements 
+     * left in the work queue are discarded, as for {@link Completion#cancel}.
+     */
+    public void shutdownNow() {
+        shutdown();
+        completion.cancel(true);
+    }
+    
+    /**
+     * @return whether {@link #shutdown} or {@link #shutdownNow} has been called
+     */
+    public boolean isShutdown() {
+        return shutdown.get();
+    }
+    
+    /**
+     * @return whether the service has been shut down and every producer and consumer has finished
+     */
+    public boolean isTerminated() {
+        return completion.isDone();
+    }
+    
+    /**
+     * Waits for the service to terminate after it has been shut down. Whether it failed or was cancelled can be 
+     * found from {@link #getCompletion()}.
+     * @param timeout how long to wait
+     * @param unit the unit of {@code timeout}
+     * @return false if the service had not terminated in time
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            completion.get(timeout, unit);
+        } catch (TimeoutException ex) {
+            return false;
+        } catch (ExecutionException ex) {
+            // failed
+        } catch (CancellationException ex) {
+            // cancelled
+        }
+        return true;
+    }
+    
+    /**
+     * @return the handle which reports the service's progress and completes when it terminates
+     */
+    public Completion getCompletion() {
+        return completion;
+    }
+    
+    /**
+     * Registers a submission or producer in progress.
+     * @throws IllegalStateException if the service has been shut down
+     */
+    private void enter() {
+        while (true) {
+            int count = users.get();
+            if (count == 0 || shutdown.get()) {
+                throw new IllegalStateException("Service has been shut down");
+            }
+            if (users.compareAndSet(count, count + 1)) {
+                return;
+            }
+        }
+    }
+    
+    private void leave() {
+        if (users.decrementAndGet() == 0) {
+            producerConsumer.endOfStream();
+        }
+    }
+    
+    /**
+     * Runs an attached producer, and interrupts its thread if it is detached while running.
+     */
+    private final class Attachment implements Runnable {
+        
+        private final Producer<? extends E> producer;
+        private final Production<E> production;
+        private Thread thread = null;
+
+        Attachment(Producer<? extends E> producer, Production<E> production) {
+            this.producer = producer;
+            this.production = production;
+        }
+
+        @Override
+        public void run() {
+            boolean detached;
+            synchronized (this) {
+                detached = production.isClosed();
+                if (!detached) {
+                    thread = Thread.currentThread();
+                }
+            }
+            if (detached) {
+                finished();
+                return;
+            }
+            try {
+                producerConsumer.runProducer(producer, production);
+            } finally {
+                synchronized (this) {
+                    thread = null;
+                    if (production.isClosed()) {
+                        // clear an interrupt from detaching, so that it does not leak into the executor's next task
+                        Thread.interrupted();
+                    }
+                }
+                finished();
+            }
+        }
+        
+        synchronized void detach() {
+            production.close();
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+        
+        /**
+         * Releases the producer's place in the service.
+         */
+        void finished() {
+            synchronized (attachments) {
+                attachments.remove(this);
+            }
+            leave();
+        }
+        
+    }
+
+}
@@ -0,0 +1,400 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An unbounded {@link BlockingQueue} which holds up to a fixed number of entries in memory and spills the rest to 
+ * append-only, memory-mapped segment files. Once anything has spilled, later entries are spilled too, and each entry 
+ * taken from memory is replaced by the oldest spilled entry, so entries are taken in the order they were put. A 
+ * segment file is deleted once every entry in it has been read.<br/><br/>Elements are converted to bytes by a 
+ * {@link Serializer} outside the lock, and the bytes of a spilled entry are only converted back once it has been 
+ * taken, by the taking thread. Producers never wait, as the queue is only bounded by the space on disk. The iterator 
+ * is not supported.
+ * @author Alan Smith
+ */
+final class SpillingQueue extends AbstractQueue<Object> implements BlockingQueue<Object> {
+    
+    private static final byte ELEMENT = 0;
+    private static final byte NULL = 1;
+    private static final byte DONE = 2;
+    private static final byte BATCH = 3;
+    
+    private final int capacity;
+    private final Path directory;
+    private final int segmentSize;
+    private final Serializer<Object> serializer;
+    private final ArrayDeque<Object> memory = new ArrayDeque<Object>();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private long spilled = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * @param capacity the number of entries to hold in memory
+     * @param directory the directory in which to create segment files
+     * @param segmentSize the size of each segment file. Larger entries get a segment of their own.
+     */
+    SpillingQueue(int capacity, Path directory, int segmentSize, Serializer<Object> serializer) {
+        this.capacity = capacity;
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public boolean offer(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (spilled == 0 && memory.size() < capacity) {
+                memory.add(e);
+                notEmpty.signal();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        byte[] record = encode(e);
+        lock.lock();
+        try {
+            if (spilled == 0 && memory.size() < capacity) {
+                memory.add(e);
+            } else {
+                append(record);
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Object e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(Object e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public Object poll() {
+        Object e;
+        lock.lock();
+        try {
+            e = dequeue();
+        } finally {
+            lock.unlock();
+        }
+        return decode(e);
+    }
+
+    @Override
+    public Object take() throws InterruptedException {
+        Object e;
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty()) {
+                notEmpty.await();
+            }
+            e = dequeue();
+        } finally {
+            lock.unlock();
+        }
+        return decode(e);
+    }
+
+    @Override
+    public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        Object e;
+        lock.lockInterruptibly();
+        try {
+            while (memory.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            e = dequeue();
+        } finally {
+            lock.unlock();
+        }
+        return decode(e);
+    }
+
+    @Override
+    public Object peek() {
+        Object e;
+        lock.lock();
+        try {
+            e = memory.peek();
+        } finally {
+            lock.unlock();
+        }
+        return decode(e);
+    }
+    
+    /**
+     * Takes the head entry from memory, and replaces it with the oldest spilled entry. The caller holds the lock.
+     * @return the entry, which may still need to be decoded, or {@code null} if the queue is empty
+     */
+    private Object dequeue() {
+        Object e = memory.poll();
+        if (e != null && spilled > 0) {
+            memory.add(readHead());
+        }
+        return e;
+    }
+    
+    /**
+     * Discards every entry, deleting the segment files, without reading them.
+     */
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            memory.clear();
+            spilled = 0;
+            while (!segments.isEmpty()) {
+                segments.poll().delete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Object> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Object> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        Object e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return (int) Math.min(Integer.MAX_VALUE, memory.size() + spilled);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return the number of entries currently spilled to disk
+     */
+    long spilled() {
+        lock.lock();
+        try {
+            return spilled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * Appends a record to the last segment, starting a new one if it does not fit. The caller holds the lock.
+     */
+    private void append(byte[] record) {
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.buffer.remaining() < 4 + record.length) {
+            tail = new Segment(Math.max(segmentSize, 4 + record.length));
+            segments.add(tail);
+        }
+        tail.buffer.putInt(record.length).put(record);
+        spilled++;
+    }
+    
+    /**
+     * Reads the oldest spilled record, deleting its segment once it has been read to the end and no more will be 
+     * written to it. The caller holds the lock.
+     * @return a view of the record in the segment's mapping
+     */
+    private Spilled readHead() {
+        Segment head = segments.peek();
+        int length = head.buffer.getInt(head.read);
+        ByteBuffer record = head.buffer.duplicate();
+        record.limit(head.read + 4 + length).position(head.read + 4);
+        head.read += 4 + length;
+        spilled--;
+        if (head.read == head.buffer.position() && (spilled == 0 || segments.size() > 1)) {
+            segments.poll().delete();
+        }
+        return new Spilled(record.slice());
+    }
+    
+    private byte[] encode(Object e) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (e == ProducerConsumer.DONE) {
+                out.writeByte(DONE);
+            } else if (e == ProducerConsumer.NULL) {
+                out.writeByte(NULL);
+            } else if (e instanceof Batch) {
+                Batch<Object> batch = (Batch<Object>) e;
+                out.writeByte(BATCH);
+                out.writeInt(batch.size());
+                for (int i = 0; i < batch.size(); i++) {
+                    Object element = batch.get(i);
+                    if (element == null) {
+                        out.writeInt(-1);
+                    } else {
+                        byte[] serialized = serializer.serialize(element);
+                        out.writeInt(serialized.length);
+                        out.write(serialized);
+                    }
+                }
+            } else {
+                out.writeByte(ELEMENT);
+                out.write(serializer.serialize(e));
+            }
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    
+    /**
+     * @return the entry itself, or the entry recreated from a spilled record
+     */
+    private Object decode(Object e) {
+        if (!(e instanceof Spilled)) {
+            return e;
+        }
+        ByteBuffer record = ((Spilled) e).record;
+        switch (record.get()) {
+            case DONE:
+                return ProducerConsumer.DONE;
+            case NULL:
+                return ProducerConsumer.NULL;
+            case BATCH:
+                int size = record.getInt();
+                Batch<Object> batch = new Batch<Object>(size);
+                for (int i = 0; i < size; i++) {
+                    int length = record.getInt();
+                    if (length < 0) {
+                        batch.add(null);
+                    } else {
+                        ByteBuffer serialized = record.slice();
+                        serialized.limit(length);
+                        batch.add(serializer.deserialize(serialized.asReadOnlyBuffer()));
+                        record.position(record.position() + length);
+                    }
+                }
+                return batch;
+            default:
+                return serializer.deserialize(record.slice().asReadOnlyBuffer());
+        }
+    }
+    
+    /**
+     * A spilled entry which has been read back into memory but not yet decoded.
+     */
+    private static final class Spilled {
+        
+        final ByteBuffer record;
+
+        Spilled(ByteBuffer record) {
+            this.record = record;
+        }
+        
+    }
+    
+    /**
+     * A segment file, mapped in full. Records are appended at the position of the mapping, and read from 
+     * {@code read}.
+     */
+    private final class Segment {
+        
+        final Path file;
+        final MappedByteBuffer buffer;
+        int read = 0;
+
+        Segment(int size) {
+            try {
+                file = Files.createTempFile(directory, "spill-", ".segment");
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        
+        /**
+         * Deletes the file. The mapping, and any records still being decoded from it, remain valid until they are 
+         * garbage collected.
+         */
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        
+    }
+
+}
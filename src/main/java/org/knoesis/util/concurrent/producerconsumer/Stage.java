@@ -0,0 +1,48 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * This interface specifies one step of a {@link Pipeline}, which turns each input element into zero or more output 
+ * elements.<br/><br/>Typical implementation:<br/><br/>
+ * <pre>
+ * {@code
+ * public class Tokenizer implements Stage<String, String> {
+ *      public void process(String line, Production<String> output) throws InterruptedException {
+ *          for (String token : line.split("\\s+")) {
+ *              output.put(token);
+ *          }
+ *      }
+ * }
+ * }
+ * </pre>
+ * @author Alan Smith
+ */
+public interface Stage<I, O> {
+    
+    /**
+     * Processes a single element. Called concurrently by each of the stage's threads, so implementations must be 
+     * thread safe.
+     * @param element the element to process
+     * @param output A view of the next stage's input, which may only be added to.
+     * @throws InterruptedException if the calling thread is interrupted while waiting to put an output element, or 
+     * the pipeline has stopped because another part of it threw an exception.
+     */
+    void process(I element, Production<O> output) throws InterruptedException;
+
+}
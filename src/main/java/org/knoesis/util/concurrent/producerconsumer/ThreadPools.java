@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sources of threads for running {@link Producer}s and {@link Consumer}s.
+ * @author Alan Smith
+ */
+final class ThreadPools {
+    
+    private static final ExecutorService SHARED = Executors.newCachedThreadPool(new ThreadFactory() {
+        
+        private final AtomicInteger count = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "knoesis-concurrency-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    
+    /**
+     * Returns a long-lived, unbounded pool of daemon threads which is shared by every {@code ProducerConsumer} not 
+     * configured with its own executor. Idle threads are kept for a minute, so repeated jobs reuse them. This pool 
+     * must never be shut down.
+     */
+    static ExecutorService shared() {
+        return SHARED;
+    }
+    
+    /**
+     * Returns a new executor which starts a virtual thread for each task.
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads (Java 21+)
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException ex) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", ex);
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException("Virtual threads are not available", ex);
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Virtual threads are not available", ex.getCause());
+        }
+    }
+    
+    private ThreadPools() {}
+
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+/**
+ * Estimates the memory held by an element, so that the work queue can be bounded by the total weight of the elements 
+ * waiting in it. See {@link ProducerConsumer.Builder#setMaxWeight}.
+ * @author Alan Smith
+ */
+public interface Weigher<E> {
+    
+    /**
+     * Returns the weight of an element, usually its approximate size in bytes. Called once when the element is put 
+     * and once when it is taken, so it must return the same weight both times, and should be cheap.
+     * @param element a non-null element
+     * @return the weight, not negative
+     */
+    long weigh(E element);
+
+}
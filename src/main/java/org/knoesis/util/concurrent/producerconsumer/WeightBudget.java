@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounds the total weight of the elements which have been put but not yet taken. Weight is claimed with a 
+ * compare-and-set, and the lock is only used by producers which must wait for consumers to release some.
+ * @author Alan Smith
+ */
+class WeightBudget {
+    
+    private final long maxWeight;
+    private final Weigher<Object> weigher;
+    private final AtomicLong used = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private volatile int waiters = 0;
+
+    WeightBudget(long maxWeight, Weigher<Object> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+    
+    long weigh(Object element) {
+        return weigher.weigh(element);
+    }
+    
+    /**
+     * Claims a weight, waiting until enough has been released. A weight greater than the whole budget is admitted 
+     * once nothing else is held, rather than never.
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    void acquire(long weight) throws InterruptedException {
+        if (tryAcquire(weight)) {
+            return;
+        }
+        lock.lockInterruptibly();
+        try {
+            waiters++;
+            try {
+                while (!tryAcquire(weight)) {
+                    released.await();
+                }
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Claims a weight, waiting at most the given time until enough has been released.
+     * @return whether the weight was claimed
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    boolean tryAcquire(long weight, long timeoutNanos) throws InterruptedException {
+        if (tryAcquire(weight)) {
+            return true;
+        }
+        long remaining = timeoutNanos;
+        lock.lockInterruptibly();
+        try {
+            waiters++;
+            try {
+                while (!tryAcquire(weight)) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+                return true;
+            } finally {
+                waiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * @return whether the weight was claimed without waiting
+     */
+    boolean tryAcquire(long weight) {
+        while (true) {
+            long current = used.get();
+            if (current > 0 && current + weight > maxWeight) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + weight)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Releases the weight of an element which has been taken, waking any waiting producers.
+     */
+    void release(Object element) {
+        used.addAndGet(-weigher.weigh(element));
+        if (waiters > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * @return the total weight of the elements put but not yet taken
+     */
+    long used() {
+        return used.get();
+    }
+
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link BlockingQueue} made of an inbox and a work-stealing deque per consumer, so that consumers do not all 
+ * contend on the head of a single queue. Each producing thread puts into the inboxes in turn, starting from a 
+ * different inbox per thread. Each consumer (see {@link #forConsumer}) takes from the bottom of its own deque, 
+ * newest first; when that is empty, it takes the oldest element from its inbox and moves a few more into its deque. 
+ * A consumer with nothing of its own steals from the top of the others' deques, oldest first, and then from their 
+ * inboxes. Owners and thieves therefore work at opposite ends and only contend for a deque's last element.<br/><br/>
+ * The deques follow Chase and Lev's "Dynamic Circular Work-Stealing Deque" (SPAA 2005), without resizing: only 
+ * the owning consumer pushes and pops at the bottom, while thieves claim the top with a compare-and-set. The inboxes 
+ * are lock-free ring buffers (see {@link RingBufferQueue}), or linked queues if the queue is unbounded. Each 
+ * consumer's view must therefore be used by one thread at a time, and a view which is not a consumer's own, such as 
+ * this queue itself, only steals.<br/><br/>{@link ProducerConsumer#DONE} markers are not queued but counted, and a 
+ * consumer only takes one once every deque and inbox is empty, so no consumer stops while there are still elements 
+ * for it to steal.<br/><br/>Blocking operations spin, yield and park as {@link RingBufferQueue} does. The iterator 
+ * is not supported.
+ * @author Alan Smith
+ */
+final class WorkStealingQueue extends AbstractQueue<Object> implements BlockingQueue<Object> {
+    
+    /**
+     * The most elements a consumer moves from its inbox into its deque at a time.
+     */
+    static final int MAX_TRANSFER = 32;
+    
+    /**
+     * The largest inbox which is a ring buffer; larger ones, including those of an unbounded queue, are linked.
+     */
+    private static final int MAX_RING_CAPACITY = 1 << 30;
+    
+    private final BlockingQueue<Object>[] inboxes;
+    private final Deque[] deques;
+    private final int transfer;
+    private final AtomicInteger dones;
+    private final ThreadLocal<int[]> cursors;
+    
+    /**
+     * The index of the consumer whose view this is, or -1 for a view which only steals.
+     */
+    private final int home;
+
+    /**
+     * @param consumers the number of inboxes and deques
+     * @param bufferSize the maximum number of entries, or {@link Integer#MAX_VALUE} for no limit. Divided evenly 
+     * between the consumers, each of whose share is split between its deque and its inbox, the latter being rounded 
+     * up to a power of two.
+     */
+    WorkStealingQueue(int consumers, int bufferSize) {
+        int share = bufferSize == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(1, (bufferSize + consumers - 1) / consumers);
+        this.transfer = Math.min(MAX_TRANSFER, share / 2);
+        this.inboxes = new BlockingQueue[consumers];
+        this.deques = new Deque[consumers];
+        int capacity = share - transfer;
+        for (int i = 0; i < consumers; i++) {
+            inboxes[i] = capacity > MAX_RING_CAPACITY 
+                    ? new LinkedBlockingQueue<Object>(capacity) : new RingBufferQueue<Object>(capacity, false, false);
+            deques[i] = new Deque(Math.max(1, transfer));
+        }
+        this.dones = new AtomicInteger();
+        this.cursors = new ThreadLocal<int[]>();
+        this.home = -1;
+    }
+    
+    private WorkStealingQueue(WorkStealingQueue queue, int home) {
+        this.inboxes = queue.inboxes;
+        this.deques = queue.deques;
+        this.transfer = queue.transfer;
+        this.dones = queue.dones;
+        this.cursors = queue.cursors;
+        this.home = home;
+    }
+    
+    /**
+     * @return a view of this queue which owns the given consumer's deque, and must only be used by one thread at a 
+     * time
+     */
+    WorkStealingQueue forConsumer(int consumer) {
+        return new WorkStealingQueue(this, consumer % deques.length);
+    }
+
+    @Override
+    public boolean offer(Object e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        if (e == ProducerConsumer.DONE) {
+            dones.incrementAndGet();
+            return true;
+        }
+        int[] cursor = cursors.get();
+        if (cursor == null) {
+            cursor = new int[] {(int) (Thread.currentThread().getId() % inboxes.length)};
+            cursors.set(cursor);
+        }
+        for (int i = 0; i < inboxes.length; i++) {
+            int index = cursor[0];
+            cursor[0] = index + 1 == inboxes.length ? 0 : index + 1;
+            if (inboxes[index].offer(e)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Object poll() {
+        Object e = pollDeques();
+        if (e != null) {
+            return e;
+        }
+        int count;
+        while ((count = dones.get()) > 0) {
+            if (dones.compareAndSet(count, count - 1)) {
+                e = pollDeques();
+                if (e == null) {
+                    return ProducerConsumer.DONE;
+                }
+                dones.incrementAndGet();
+                return e;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Takes from this consumer's deque or inbox, or else steals from the others.
+     */
+    private Object pollDeques() {
+        Object e;
+        if (home >= 0) {
+            Deque deque = deques[home];
+            if ((e = deque.pop()) != null) {
+                return e;
+            }
+            BlockingQueue<Object> inbox = inboxes[home];
+            if ((e = inbox.poll()) != null) {
+                // make the elements after it stealable, while taking them from the inbox in bulk
+                Object next;
+                for (int i = 0; i < transfer && (next = inbox.poll()) != null; i++) {
+                    deque.push(next);
+                }
+                return e;
+            }
+        }
+        int start = home + 1;
+        for (int i = 0; i < deques.length; i++) {
+            int index = start + i;
+            if ((e = deques[index < deques.length ? index : index - deques.length].steal()) != null) {
+                return e;
+            }
+        }
+        for (int i = 0; i < inboxes.length; i++) {
+            int index = start + i;
+            if ((e = inboxes[index < inboxes.length ? index : index - inboxes.length].poll()) != null) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Object peek() {
+        Object e;
+        for (int i = 0; i < deques.length; i++) {
+            if ((e = deques[i].peek()) != null) {
+                return e;
+            }
+        }
+        for (BlockingQueue<Object> inbox : inboxes) {
+            if ((e = inbox.peek()) != null) {
+                return e;
+            }
+        }
+        return dones.get() > 0 ? ProducerConsumer.DONE : null;
+    }
+
+    @Override
+    public void put(Object e) throws InterruptedException {
+        int tries = 0;
+        while (!offer(e)) {
+            tries = RingBufferQueue.idle(tries);
+        }
+    }
+
+    @Override
+    public boolean offer(Object e, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        while (!offer(e)) {
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            tries = RingBufferQueue.idle(tries);
+        }
+        return true;
+    }
+
+    @Override
+    public Object take() throws InterruptedException {
+        int tries = 0;
+        Object e;
+        while ((e = poll()) == null) {
+            tries = RingBufferQueue.idle(tries);
+        }
+        return e;
+    }
+
+    @Override
+    public Object poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int tries = 0;
+        Object e;
+        while ((e = poll()) == null) {
+            if (System.nanoTime() - deadline >= 0) {
+                return null;
+            }
+            tries = RingBufferQueue.idle(tries);
+        }
+        return e;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        long remaining = 0;
+        for (BlockingQueue<Object> inbox : inboxes) {
+            remaining += inbox.remainingCapacity();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, remaining);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Object> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Object> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int drained = 0;
+        Object e;
+        while (drained < maxElements && (e = poll()) != null) {
+            c.add(e);
+            drained++;
+        }
+        return drained;
+    }
+
+    @Override
+    public int size() {
+        long size = dones.get();
+        for (int i = 0; i < deques.length; i++) {
+            size += deques[i].size() + inboxes[i].size();
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        throw new UnsupportedOperationException();
+    }
+    
+    /**
+     * A bounded Chase-Lev deque. The owner pushes and pops at the bottom without contention unless one element is 
+     * left; thieves take from the top, each claiming its element with a compare-and-set.
+     */
+    private static final class Deque {
+        
+        private final AtomicReferenceArray<Object> slots;
+        private final int mask;
+        private final Sequence top = new Sequence(0);
+        private final Sequence bottom = new Sequence(0);
+
+        /**
+         * @param capacity rounded up to the next power of two
+         */
+        Deque(int capacity) {
+            int size = Integer.highestOneBit(capacity);
+            if (size < capacity) {
+                size <<= 1;
+            }
+            this.slots = new AtomicReferenceArray<Object>(size);
+            this.mask = size - 1;
+        }
+        
+        /**
+         * Adds an element at the bottom. Owner only; the owner only pushes once its pops have emptied the deque, 
+         * and never more than its capacity, so there is always room.
+         */
+        void push(Object e) {
+            long b = bottom.get();
+            slots.lazySet((int) b & mask, e);
+            bottom.setOrdered(b + 1);
+        }
+        
+        /**
+         * Removes the newest element. Owner only.
+         */
+        Object pop() {
+            long b = bottom.get() - 1;
+            // the fence orders this write before the read of top, so that a thief cannot take the same element
+            bottom.set(b);
+            long t = top.get();
+            if (t > b) {
+                bottom.setOrdered(b + 1);
+                return null;
+            }
+            int index = (int) b & mask;
+            Object e = slots.get(index);
+            if (t == b) {
+                // the last element, which a thief may be claiming too
+                if (!top.compareAndSet(t, t + 1)) {
+                    e = null;
+                }
+                bottom.setOrdered(b + 1);
+            } else {
+                slots.lazySet(index, null);
+            }
+            return e;
+        }
+        
+        /**
+         * Removes the oldest element, unless the deque is empty or another thread claims it first.
+         */
+        Object steal() {
+            while (true) {
+                long t = top.get();
+                long b = bottom.get();
+                if (t >= b) {
+                    return null;
+                }
+                Object e = slots.get((int) t & mask);
+                if (top.compareAndSet(t, t + 1)) {
+                    return e;
+                }
+            }
+        }
+        
+        Object peek() {
+            long t = top.get();
+            return t < bottom.get() ? slots.get((int) t & mask) : null;
+        }
+        
+        int size() {
+            return (int) Math.max(0, bottom.get() - top.get());
+        }
+        
+    }
+
+}
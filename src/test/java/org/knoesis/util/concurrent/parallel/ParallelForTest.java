@@ -16,10 +16,25 @@
 
 package org.knoesis.util.concurrent.parallel;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import org.knoesis.util.concurrent.producerconsumer.Completion;
+import org.knoesis.util.concurrent.producerconsumer.DeadLetterSink;
+import org.knoesis.util.concurrent.producerconsumer.FailurePolicy;
+import org.knoesis.util.concurrent.producerconsumer.ProcessingException;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -55,6 +70,255 @@ public class ParallelForTest extends TestCase {
         assertTrue(operation.getResult().containsAll(input));
     }
     
+    public void testParallelForRandomAccess() throws InterruptedException {
+        List<Integer> input = new ArrayList<Integer>(NUM_ELEMENTS);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input.add(i);
+        }
+        TestOperation operation = new TestOperation();
+        long start = System.currentTimeMillis();
+        Parallel.forEach(input, operation);
+        System.out.format("Parallel.forEach (RandomAccess) took %dms\n", System.currentTimeMillis() - start);
+        assertEquals(NUM_ELEMENTS, operation.getResult().size());
+        assertTrue(operation.getResult().containsAll(input));
+    }
+    
+    public void testParallelForArray() throws InterruptedException {
+        Integer[] input = new Integer[NUM_ELEMENTS];
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input[i] = i;
+        }
+        TestOperation operation = new TestOperation();
+        Parallel.forEach(input, operation, 3);
+        assertEquals(NUM_ELEMENTS, operation.getResult().size());
+    }
+    
+    public void testParallelForExecutor() throws InterruptedException {
+        List<Integer> input = new ArrayList<Integer>(NUM_ELEMENTS);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input.add(i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            TestOperation operation = new TestOperation();
+            Parallel.forEach(input, operation, 4, executor);
+            assertEquals(NUM_ELEMENTS, operation.getResult().size());
+            operation = new TestOperation();
+            Parallel.forEach(new HashSet<Integer>(input), operation, 4, executor);
+            assertEquals(NUM_ELEMENTS, operation.getResult().size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    public void testParallelForPrimitives() throws InterruptedException {
+        final AtomicLong sum = new AtomicLong();
+        Parallel.forRange(0, NUM_ELEMENTS, new IntOperation() {
+            @Override
+            public void perform(int i) {
+                sum.addAndGet(i);
+            }
+        }, 3);
+        assertEquals((long) NUM_ELEMENTS * (NUM_ELEMENTS - 1) / 2, sum.get());
+        final int[] counts = new int[NUM_ELEMENTS];
+        int[] input = new int[NUM_ELEMENTS];
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input[i] = i;
+        }
+        Parallel.forEach(input, new IntOperation() {
+            @Override
+            public void perform(int i) {
+                counts[i]++;
+            }
+        }, 3);
+        for (int count : counts) {
+            assertEquals(1, count);
+        }
+    }
+    
+    public void testParallelForSchedules() throws InterruptedException {
+        List<Integer> input = new ArrayList<Integer>(NUM_ELEMENTS);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input.add(i);
+        }
+        for (Schedule schedule : Schedule.values()) {
+            final AtomicIntegerArray counts = new AtomicIntegerArray(NUM_ELEMENTS);
+            Operation<Integer> operation = new Operation<Integer>() {
+                @Override
+                public void perform(Integer i) {
+                    counts.incrementAndGet(i);
+                }
+            };
+            Parallel.forEach(new HashSet<Integer>(input), operation, Options.newBuilder()
+                    .setSchedule(schedule)
+                    .setNumThreads(3)
+                    .build());
+            Parallel.forEach(input, operation, Options.newBuilder()
+                    .setSchedule(schedule)
+                    .setChunkSize(7)
+                    .setNumThreads(4)
+                    .build());
+            for (int i=0; i<NUM_ELEMENTS; i++) {
+                assertEquals(schedule.toString(), 2, counts.get(i));
+            }
+        }
+    }
+    
+    public void testParallelForStream() throws InterruptedException {
+        final Iterator<Integer> source = new Iterator<Integer>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < NUM_ELEMENTS;
+            }
+
+            @Override
+            public Integer next() {
+                return next++;
+            }
+        };
+        TestOperation operation = new TestOperation();
+        Parallel.forEach(new Iterable<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return source;
+            }
+        }, operation, 3);
+        assertEquals(NUM_ELEMENTS, operation.getResult().size());
+        operation = new TestOperation();
+        Parallel.forEach(IntStream.range(0, NUM_ELEMENTS).boxed(), operation, 3);
+        assertEquals(NUM_ELEMENTS, operation.getResult().size());
+    }
+    
+    public void testParallelForAsync() throws Exception {
+        List<Integer> input = new ArrayList<Integer>(NUM_ELEMENTS);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input.add(i);
+        }
+        TestOperation operation = new TestOperation();
+        Completion completion = Parallel.forEachAsync(input, operation, 3);
+        completion.get(10, TimeUnit.SECONDS);
+        assertEquals(NUM_ELEMENTS, completion.getConsumed());
+        assertEquals(NUM_ELEMENTS, operation.getResult().size());
+    }
+    
+    public void testParallelForCallerRuns() throws InterruptedException {
+        final Thread caller = Thread.currentThread();
+        final ConcurrentSkipListSet<Thread> threads = new ConcurrentSkipListSet<Thread>(new Comparator<Thread>() {
+            @Override
+            public int compare(Thread a, Thread b) {
+                return Long.compare(a.getId(), b.getId());
+            }
+        });
+        Operation<Integer> recordThread = new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                threads.add(Thread.currentThread());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        List<Integer> input = new ArrayList<Integer>();
+        for (int i=0; i<100; i++) {
+            input.add(i);
+        }
+        Parallel.forEach(input, recordThread, 1);
+        assertEquals(Collections.singleton(caller), threads);
+        
+        threads.clear();
+        Parallel.forEach(new HashSet<Integer>(input), recordThread, 4);
+        assertTrue(threads.contains(caller));
+        assertTrue(threads.size() > 1);
+        
+        threads.clear();
+        Parallel.forEach(input, recordThread, Options.newBuilder()
+                .setNumThreads(4)
+                .setInlineThreshold(input.size())
+                .build());
+        assertEquals(Collections.singleton(caller), threads);
+        
+        threads.clear();
+        Parallel.forEach(input.iterator(), recordThread, 1);
+        assertEquals(Collections.singleton(caller), threads);
+        
+        final Set<Thread> readers = new ConcurrentSkipListSet<Thread>(threads.comparator());
+        final Iterator<Integer> source = input.iterator();
+        Parallel.forEach(new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                readers.add(Thread.currentThread());
+                return source.next();
+            }
+        }, recordThread, 4);
+        assertEquals(Collections.singleton(caller), readers);
+    }
+    
+    public void testParallelForFailures() throws InterruptedException {
+        List<Integer> input = new ArrayList<Integer>(NUM_ELEMENTS);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input.add(i);
+        }
+        Operation<Integer> failing = new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                if (i % 1000 == 0) {
+                    throw new IllegalArgumentException("Failed on " + i);
+                }
+            }
+        };
+        for (Schedule schedule : Schedule.values()) {
+            try {
+                Parallel.forEach(input, failing, Options.newBuilder()
+                        .setSchedule(schedule)
+                        .setNumThreads(3)
+                        .setFailurePolicy(FailurePolicy.COLLECT)
+                        .build());
+                fail("Expected ProcessingException");
+            } catch (ProcessingException ex) {
+                assertEquals(schedule.name(), NUM_ELEMENTS / 1000, ex.getFailures().size());
+            }
+            try {
+                Parallel.forEach(new HashSet<Integer>(input), failing, Options.newBuilder()
+                        .setSchedule(schedule)
+                        .setNumThreads(3)
+                        .setFailurePolicy(FailurePolicy.FAIL_FAST)
+                        .build());
+                fail("Expected ProcessingException");
+            } catch (ProcessingException ex) {
+                assertEquals(schedule.name(), 1, ex.getFailures().size());
+            }
+        }
+        final Set<Integer> deadLetters = new ConcurrentSkipListSet<Integer>();
+        final Set<Integer> attempted = new ConcurrentSkipListSet<Integer>();
+        Parallel.forEach(input, new Operation<Integer>() {
+            @Override
+            public void perform(Integer i) {
+                if (i % 1000 == 0 || (i % 10 == 0 && attempted.add(i))) {
+                    throw new IllegalArgumentException("Failed on " + i);
+                }
+            }
+        }, Options.newBuilder()
+                .setFailurePolicy(FailurePolicy.FAIL_FAST)
+                .setRetries(2, new DeadLetterSink<Integer>() {
+                    @Override
+                    public void deadLetter(Integer element, Exception cause) {
+                        deadLetters.add(element);
+                    }
+                })
+                .build());
+        assertEquals(NUM_ELEMENTS / 1000, deadLetters.size());
+        assertEquals(NUM_ELEMENTS / 10 - NUM_ELEMENTS / 1000, attempted.size());
+    }
+    
     public static class TestOperation implements Operation<Integer> {
         
         private final Set<Integer> result = new ConcurrentSkipListSet<Integer>();
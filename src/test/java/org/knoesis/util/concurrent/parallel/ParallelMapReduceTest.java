@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.parallel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ *
+ * @author Alan Smith
+ */
+public class ParallelMapReduceTest extends TestCase {
+    
+    private static final int NUM_ELEMENTS = 10000;
+
+    public ParallelMapReduceTest(String name) {
+        super(name);
+    }
+    
+    public static Test suite() {
+        return new TestSuite(ParallelMapReduceTest.class);
+    }
+    
+    private static List<Integer> input() {
+        List<Integer> input = new ArrayList<Integer>(NUM_ELEMENTS);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            input.add(i);
+        }
+        return input;
+    }
+    
+    public void testStreamingMapPreservesOrder() throws InterruptedException {
+        final List<String> result = new ArrayList<String>();
+        Parallel.map(input().iterator(), new Mapper<Integer, String>() {
+            @Override
+            public String map(Integer item) {
+                return "#" + item;
+            }
+        }, new Operation<String>() {
+            @Override
+            public void perform(String item) {
+                result.add(item);
+            }
+        }, 3);
+        assertEquals(NUM_ELEMENTS, result.size());
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            assertEquals("#" + i, result.get(i));
+        }
+    }
+    
+    public void testMapPreservesOrder() throws InterruptedException {
+        List<String> result = Parallel.map(new LinkedList<Integer>(input()), new Mapper<Integer, String>() {
+            @Override
+            public String map(Integer item) {
+                return "#" + item;
+            }
+        });
+        assertEquals(NUM_ELEMENTS, result.size());
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            assertEquals("#" + i, result.get(i));
+        }
+    }
+    
+    public void testReduce() throws InterruptedException {
+        long sum = Parallel.reduce(input(), 0, new Reducer<Integer>() {
+            @Override
+            public Integer reduce(Integer left, Integer right) {
+                return left + right;
+            }
+        }, 4);
+        assertEquals((long) NUM_ELEMENTS * (NUM_ELEMENTS - 1) / 2, sum);
+        String concatenated = Parallel.reduce(Parallel.map(input().subList(0, 20), new Mapper<Integer, String>() {
+            @Override
+            public String map(Integer item) {
+                return String.valueOf((char) ('a' + item));
+            }
+        }), "", new Reducer<String>() {
+            @Override
+            public String reduce(String left, String right) {
+                return left + right;
+            }
+        }, 4);
+        assertEquals("abcdefghijklmnopqrst", concatenated);
+    }
+    
+    public void testCollect() throws InterruptedException {
+        Map<Integer, Integer> countsByLastDigit = Parallel.collect(input(), new Aggregation<Integer, Map<Integer, Integer>>() {
+            @Override
+            public Map<Integer, Integer> newContainer() {
+                return new HashMap<Integer, Integer>();
+            }
+
+            @Override
+            public void accumulate(Map<Integer, Integer> container, Integer item) {
+                Integer count = container.get(item % 10);
+                container.put(item % 10, count == null ? 1 : count + 1);
+            }
+
+            @Override
+            public Map<Integer, Integer> combine(Map<Integer, Integer> left, Map<Integer, Integer> right) {
+                for (Map.Entry<Integer, Integer> entry : right.entrySet()) {
+                    Integer count = left.get(entry.getKey());
+                    left.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+                }
+                return left;
+            }
+        });
+        assertEquals(10, countsByLastDigit.size());
+        assertEquals(Integer.valueOf(NUM_ELEMENTS / 10), countsByLastDigit.get(7));
+    }
+    
+    public void testMapperExceptionIsRethrown() throws InterruptedException {
+        try {
+            Parallel.map(input(), new Mapper<Integer, Integer>() {
+                @Override
+                public Integer map(Integer item) {
+                    if (item == 1234) {
+                        throw new IllegalStateException("bad item");
+                    }
+                    return item;
+                }
+            });
+            fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+    
+    public void testMemoize() throws InterruptedException {
+        final AtomicIntegerArray computed = new AtomicIntegerArray(100);
+        final Memoizer<Integer, Integer> squares = Parallel.memoize(new Mapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer key) {
+                computed.incrementAndGet(key);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return key * key;
+            }
+        }, 1000);
+        List<Integer> results = Parallel.map(input(), new Mapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer item) {
+                return squares.map(item % 100);
+            }
+        }, 4);
+        for (int i=0; i<NUM_ELEMENTS; i++) {
+            assertEquals((i % 100) * (i % 100), results.get(i).intValue());
+        }
+        for (int key=0; key<100; key++) {
+            assertEquals(1, computed.get(key));
+        }
+        assertEquals(100, squares.getMisses());
+        assertEquals(NUM_ELEMENTS - 100, squares.getHits());
+        assertEquals(0, squares.getEvictions());
+        
+        Memoizer<Integer, Integer> small = Parallel.memoize(new Mapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer key) {
+                return -key;
+            }
+        }, 16);
+        for (int key=0; key<100; key++) {
+            assertEquals(-key, small.map(key).intValue());
+        }
+        assertEquals(16, small.size());
+        assertEquals(100 - 16, small.getEvictions());
+        assertEquals(-99, small.map(99).intValue());
+        assertEquals(1, small.getHits());
+        
+        final AtomicIntegerArray calls = new AtomicIntegerArray(1);
+        Memoizer<Integer, Integer> failing = Parallel.memoize(new Mapper<Integer, Integer>() {
+            @Override
+            public Integer map(Integer key) {
+                if (calls.incrementAndGet(0) == 1) {
+                    throw new IllegalStateException("first call fails");
+                }
+                return key;
+            }
+        }, 16);
+        try {
+            failing.map(7);
+            fail("Exception was not rethrown");
+        } catch (IllegalStateException ex) {
+            // failures are not cached
+        }
+        assertEquals(7, failing.map(7).intValue());
+        assertEquals(2, calls.get(0));
+    }
+
+}
@@ -0,0 +1,113 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ *
+ * @author Alan Smith
+ */
+public class MappedFileProducerTest extends TestCase {
+    
+    private static final int NUM_RECORDS = 5000;
+
+    public MappedFileProducerTest(String name) {
+        super(name);
+    }
+    
+    public static Test suite() {
+        return new TestSuite(MappedFileProducerTest.class);
+    }
+    
+    /**
+     * Asserts that every line is produced exactly once when small segments are scanned by several threads
+     */
+    public void testDelimited() throws IOException, InterruptedException {
+        File file = File.createTempFile("records", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < NUM_RECORDS; i++) {
+                out.write(("record-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            out.close();
+        }
+        MappedFileProducer producer = MappedFileProducer.newBuilder(file.toPath())
+                .setSegmentSize(1000)
+                .build();
+        assertRecords(producer, 3);
+    }
+    
+    public void testLengthPrefixed() throws IOException, InterruptedException {
+        File file = File.createTempFile("records", ".bin");
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < NUM_RECORDS; i++) {
+                byte[] record = ("record-" + i).getBytes(StandardCharsets.UTF_8);
+                out.writeInt(record.length);
+                out.write(record);
+            }
+        } finally {
+            out.close();
+        }
+        MappedFileProducer producer = MappedFileProducer.newBuilder(file.toPath())
+                .setLengthPrefixed()
+                .setSegmentSize(1000)
+                .build();
+        assertRecords(producer, 2);
+    }
+    
+    private void assertRecords(MappedFileProducer producer, int producerThreads) throws InterruptedException {
+        final Set<String> records = new ConcurrentSkipListSet<String>();
+        final AtomicInteger count = new AtomicInteger();
+        ProducerConsumer.Builder<ByteBuffer> builder = ProducerConsumer.<ByteBuffer>newBuilder();
+        for (int i = 0; i < producerThreads; i++) {
+            builder.addProducer(producer);
+        }
+        builder.addConsumer(new Consumer<ByteBuffer>() {
+                    @Override
+                    public void consume(Iterable<ByteBuffer> consumables) {
+                        for (ByteBuffer record : consumables) {
+                            records.add(StandardCharsets.UTF_8.decode(record).toString());
+                            count.incrementAndGet();
+                        }
+                    }
+                })
+                .build()
+                .begin();
+        assertEquals(NUM_RECORDS, count.get());
+        assertEquals(NUM_RECORDS, records.size());
+        assertTrue(records.contains("record-0"));
+        assertTrue(records.contains("record-" + (NUM_RECORDS - 1)));
+    }
+
+}
@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2014 Kno.e.sis
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.knoesis.util.concurrent.producerconsumer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ *
+ * @author Alan Smith
+ */
+public class PipelineTest extends TestCase {
+    
+    private static final int NUM_ELEMENTS = 10000;
+
+    public PipelineTest(String name) {
+        super(name);
+    }
+    
+    public static Test suite() {
+        return new TestSuite(PipelineTest.class);
+    }
+    
+    /**
+     * Asserts that every element passes through every stage, including fused ones, and that stages may output zero 
+     * or many elements per input
+     */
+    public void testPipeline() throws InterruptedException {
+        final Set<String> result = new ConcurrentSkipListSet<String>();
+        final AtomicInteger consumed = new AtomicInteger();
+        Pipeline.<Integer>from(new Producer<Integer>() {
+                    @Override
+                    public void produce(Production<Integer> production) {
+                        try {
+                            for (int i = 0; i < NUM_ELEMENTS; i++) {
+                                production.put(i);
+                            }
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(PipelineTest.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                })
+                .then(new Stage<Integer, Integer>() {
+                    @Override
+                    public void process(Integer element, Production<Integer> output) throws InterruptedException {
+                        if (element % 2 == 0) {
+                            output.put(element);
+                        }
+                    }
+                })
+                .stage(new Stage<Integer, String>() {
+                    @Override
+                    public void process(Integer element, Production<String> output) throws InterruptedException {
+                        output.put(element + "a");
+                        output.put(element + "b");
+                    }
+                }, 3, 16)
+                .then(new Stage<String, String>() {
+                    @Override
+                    public void process(String element, Production<String> output) throws InterruptedException {
+                        output.put(element.toUpperCase());
+                    }
+                })
+                .stage(new Stage<String, String>() {
+                    @Override
+                    public void process(String element, Production<String> output) throws InterruptedException {
+                        output.put("x" + element);
+                    }
+                }, 2, 16)
+                .to(new Consumer<String>() {
+                    @Override
+                    public void consume(Iterable<String> consumables) {
+                        for (String s : consumables) {
+                            result.add(s);
+                            consumed.incrementAndGet();
+                        }
+                    }
+                }, 2, 16)
+                .build()
+                .begin();
+        assertEquals(NUM_ELEMENTS, consumed.get());
+        assertEquals(NUM_ELEMENTS, result.size());
+        assertTrue(result.contains("x0A"));
+        assertTrue(result.contains("x" + (NUM_ELEMENTS - 2) + "B"));
+    }
+
+    /**
+     * Asserts that an ordered pipeline delivers outputs in production order, even when later elements finish first
+     */
+    public void testOrderedPipeline() throws InterruptedException {
+        final List<String> result = new ArrayList<String>();
+        Pipeline.<Integer>from(new Producer<Integer>() {
+                    @Override
+                    public void produce(Production<Integer> production) {
+                        try {
+                            for (int i = 0; i < NUM_ELEMENTS; i++) {
+                                production.put(i);
+                            }
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(PipelineTest.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                })
+                .stage(new Stage<Integer, Integer>() {
+                    @Override
+                    public void process(Integer element, Production<Integer> output) throws InterruptedException {
+                        if (element % 100 == 0) {
+                            Thread.sleep(1);
+                        }
+                        if (element % 3 != 0) {
+                            output.put(element);
+                        }
+                    }
+                }, 4, 16)
+                .stage(new Stage<Integer, String>() {
+                    @Override
+                    public void process(Integer element, Production<String> output) throws InterruptedException {
+                        output.put(element + "a");
+                        output.put(element + "b");
+                    }
+                }, 3, 16)
+                .to(new Consumer<String>() {
+                    @Override
+                    public void consume(Iterable<String> consumables) {
+                        for (String s : consumables) {
+                            result.add(s);
+                        }
+                    }
+                }, 1, 16)
+                .setOrdered(8)
+                .build()
+                .begin();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < NUM_ELEMENTS; i++) {
+            if (i % 3 != 0) {
+                expected.add(i + "a");
+                expected.add(i + "b");
+            }
+        }
+        assertEquals(expected, result);
+    }
+
+    /**
+     * Asserts that an exception thrown by the consumer or a stage stops the rest of the pipeline, including an endless 
+     * producer blocked on a full queue, and is thrown by {@link Pipeline#begin()}
+     */
+    public void testFailure() throws InterruptedException {
+        for (final boolean stageFails : new boolean[] {false, true}) {
+            final AtomicBoolean producing = new AtomicBoolean(true);
+            final AtomicInteger consumed = new AtomicInteger();
+            Pipeline.Builder<Integer> builder = Pipeline.<Integer>from(new Producer<Integer>() {
+                        @Override
+                        public void produce(Production<Integer> production) {
+                            try {
+                                for (int i = 0; ; i++) {
+                                    production.put(i);
+                                }
+                            } catch (InterruptedException ex) {
+                                // stopped
+                            } finally {
+                                producing.set(false);
+                            }
+                        }
+                    })
+                    .stage(new Stage<Integer, Integer>() {
+                        @Override
+                        public void process(Integer element, Production<Integer> output) throws InterruptedException {
+                            if (stageFails && element == 1000) {
+                                throw new IllegalStateException("Stage failed");
+                            }
+                            output.put(element);
+                        }
+                    }, 2, 16)
+                    .to(new Consumer<Integer>() {
+                        @Override
+                        public void consume(Iterable<Integer> consumables) {
+                            for (Integer i : consumables) {
+                                if (!stageFails && consumed.incrementAndGet() == 1000) {
+                                    throw new IllegalStateException("Consumer failed");
+                                }
+                            }
+                        }
+                    }, 2, 16);
+            if (stageFails) {
+                builder.setOrdered(8);
+            }
+            final Pipeline pipeline = builder.build();
+            final AtomicReference<Throwable> thrown = new AtomicReference<Throwable>();
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        pipeline.begin();
+                    } catch (Throwable ex) {
+                        thrown.set(ex);
+                    }
+                }
+            });
+            thread.start();
+            thread.join(30000);
+            assertFalse("begin() did not return", thread.isAlive());
+            assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof ProcessingException);
+            assertTrue(thrown.get().getCause() instanceof IllegalStateException);
+            assertFalse(producing.get());
+        }
+    }
+
+}
@@ -15,8 +15,26 @@
  */
 package org.knoesis.util.concurrent.producerconsumer;
 
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import junit.framework.Test;
@@ -64,6 +82,1008 @@ public class ProducerConsumerTest
         assertEquals(0, stash.size());
     }
     
+    /**
+     * Asserts that all produced elements are consumed when producers hand off batches
+     */
+    public void testBatching() throws InterruptedException
+    {
+        Set<String> stash = new ConcurrentSkipListSet<String>();
+        ProducerConsumer<String> pc = ProducerConsumer.<String>newBuilder()
+                .addProducer(new TestProducer(stash))
+                .addConsumer(new TestConsumer(stash))
+                .addConsumer(new TestConsumer(stash))
+                .setBatchSize(64)
+                .setBufferSize(4)
+                .build();
+        pc.begin();
+        assertEquals(0, stash.size());
+    }
+    
+    /**
+     * Asserts that all produced elements are consumed through each variant of the ring buffer
+     */
+    public void testRingBuffer() throws InterruptedException
+    {
+        for (int producers = 1; producers <= 2; producers++) {
+            for (int consumers = 1; consumers <= 3; consumers += 2) {
+                Set<String> stash = new ConcurrentSkipListSet<String>();
+                ProducerConsumer.Builder<String> builder = ProducerConsumer.<String>newBuilder()
+                        .setQueueStrategy(QueueStrategy.RING_BUFFER)
+                        .setBufferSize(16);
+                for (int i = 0; i < producers; i++) {
+                    builder.addProducer(new TestProducer(stash));
+                }
+                for (int i = 0; i < consumers; i++) {
+                    builder.addConsumer(new TestConsumer(stash));
+                }
+                builder.build().begin();
+                assertEquals(0, stash.size());
+            }
+        }
+    }
+    
+    /**
+     * Asserts that all produced elements are consumed when each consumer has its own queue, including when a slow 
+     * consumer leaves elements in its queue for the others to steal, with small and large deques
+     */
+    public void testWorkStealing() throws InterruptedException
+    {
+        final int perProducer = 10000;
+        final AtomicIntegerArray counts = new AtomicIntegerArray(perProducer);
+        final AtomicInteger slow = new AtomicInteger();
+        Producer<Integer> producer = new Producer<Integer>() {
+            @Override
+            public void produce(Production<Integer> production) {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        production.put(i);
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+        Consumer<Integer> consumer = new Consumer<Integer>() {
+            @Override
+            public void consume(Iterable<Integer> consumables) {
+                for (Integer i : consumables) {
+                    counts.incrementAndGet(i);
+                }
+            }
+        };
+        for (int bufferSize : new int[] {16, 1024}) {
+            for (int i = 0; i < perProducer; i++) {
+                counts.set(i, 0);
+            }
+            ProducerConsumer.<Integer>newBuilder()
+                    .useWorkStealing()
+                    .setBufferSize(bufferSize)
+                    .addProducer(producer)
+                    .addProducer(producer)
+                    .addConsumer(consumer)
+                    .addConsumer(consumer)
+                    .addConsumer(consumer)
+                    .addConsumer(new Consumer<Integer>() {
+                        @Override
+                        public void consume(Iterable<Integer> consumables) {
+                            for (Integer i : consumables) {
+                                counts.incrementAndGet(i);
+                                if (slow.incrementAndGet() % 100 == 0) {
+                                    try {
+                                        Thread.sleep(1);
+                                    } catch (InterruptedException ex) {
+                                        return;
+                                    }
+                                }
+                            }
+                        }
+                    })
+                    .build()
+                    .begin();
+            for (int i = 0; i < perProducer; i++) {
+                assertEquals(2, counts.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Asserts that every element with a given key is consumed by the same consumer, in the order it was produced
+     */
+    public void testPartitioning() throws InterruptedException
+    {
+        final int numElements = 10000;
+        final int numKeys = 37;
+        final ConcurrentMap<Integer, Consumer<?>> owners = new ConcurrentHashMap<Integer, Consumer<?>>();
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final AtomicInteger shared = new AtomicInteger();
+        ProducerConsumer.Builder<Integer> builder = ProducerConsumer.<Integer>newBuilder()
+                .setBufferSize(64)
+                .setKeyExtractor(new KeyExtractor<Integer>() {
+                    @Override
+                    public Object keyOf(Integer element) {
+                        return element % numKeys;
+                    }
+                })
+                .addProducer(new Producer<Integer>() {
+                    @Override
+                    public void produce(Production<Integer> production) {
+                        try {
+                            for (int i = 0; i < numElements; i++) {
+                                production.put(i);
+                            }
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                });
+        for (int c = 0; c < 4; c++) {
+            builder.addConsumer(new Consumer<Integer>() {
+                private final Map<Integer, Integer> last = new HashMap<Integer, Integer>();
+
+                @Override
+                public void consume(Iterable<Integer> consumables) {
+                    for (Integer element : consumables) {
+                        Integer key = element % numKeys;
+                        Consumer<?> owner = owners.putIfAbsent(key, this);
+                        if (owner != null && owner != this) {
+                            shared.incrementAndGet();
+                        }
+                        Integer previous = last.put(key, element);
+                        if (previous != null && previous > element) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        consumed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        builder.build().begin();
+        assertEquals(numElements, consumed.get());
+        assertEquals(0, outOfOrder.get());
+        assertEquals(0, shared.get());
+        assertEquals(numKeys, owners.size());
+    }
+    
+    /**
+     * Asserts that an asynchronous run reports progress and runs callbacks on completion, and that cancellation 
+     * stops an endless producer and its consumers
+     */
+    public void testBeginAsync() throws Exception
+    {
+        Set<String> stash = new ConcurrentSkipListSet<String>();
+        Completion completion = ProducerConsumer.<String>newBuilder()
+                .addProducer(new TestProducer(stash))
+                .addConsumer(new TestConsumer(stash))
+                .addConsumer(new TestConsumer(stash))
+                .build()
+                .beginAsync();
+        final CountDownLatch callback = new CountDownLatch(1);
+        completion.toCompletionStage().thenRun(new Runnable() {
+            @Override
+            public void run() {
+                callback.countDown();
+            }
+        });
+        assertNull(completion.get(10, TimeUnit.SECONDS));
+        assertTrue(callback.await(10, TimeUnit.SECONDS));
+        assertEquals(TestProducer.NUM, completion.getProduced());
+        assertEquals(TestProducer.NUM, completion.getConsumed());
+        assertEquals(0, stash.size());
+        
+        completion = ProducerConsumer.<Integer>newBuilder()
+                .setBufferSize(16)
+                .addProducer(new Producer<Integer>() {
+                    @Override
+                    public void produce(Production<Integer> production) {
+                        try {
+                            while (true) {
+                                production.put(0);
+                            }
+                        } catch (InterruptedException ex) {
+                            // cancelled
+                        }
+                    }
+                })
+                .addConsumer(new Consumer<Integer>() {
+                    @Override
+                    public void consume(Iterable<Integer> consumables) {
+                        for (Integer i : consumables) {
+                            try {
+                                Thread.sleep(1);
+                            } catch (InterruptedException ex) {
+                                return;
+                            }
+                        }
+                    }
+                })
+                .build()
+                .beginAsync();
+        while (completion.getConsumed() < 10) {
+            Thread.sleep(1);
+        }
+        assertTrue(completion.cancel(true));
+        try {
+            completion.get(10, TimeUnit.SECONDS);
+            fail("Expected CancellationException");
+        } catch (CancellationException ex) {
+            // expected
+        }
+        assertTrue(completion.isDone());
+        assertTrue(completion.isCancelled());
+    }
+    
+    /**
+     * Asserts that cancelling leaves single-consumer queues to their consumers, so that no element is taken twice or 
+     * out of order as the remaining ones are discarded
+     */
+    public void testCancelSingleConsumerQueues() throws Exception
+    {
+        for (int round = 0; round < 20; round++) {
+            final boolean partitioned = round % 2 == 1;
+            final AtomicBoolean misordered = new AtomicBoolean();
+            final AtomicLong consumed = new AtomicLong();
+            Consumer<Integer> consumer = new Consumer<Integer>() {
+                @Override
+                public void consume(Iterable<Integer> consumables) {
+                    int previous = -1;
+                    for (Integer i : consumables) {
+                        if (i <= previous) {
+                            misordered.set(true);
+                        }
+                        previous = i;
+                        consumed.incrementAndGet();
+                    }
+                }
+            };
+            ProducerConsumer.Builder<Integer> builder = ProducerConsumer.<Integer>newBuilder()
+                    .setBufferSize(64)
+                    .setQueueStrategy(QueueStrategy.RING_BUFFER)
+                    .addProducer(new Producer<Integer>() {
+                        @Override
+                        public void produce(Production<Integer> production) {
+                            try {
+                                for (int i = 0; ; i++) {
+                                    production.put(i);
+                                }
+                            } catch (InterruptedException ex) {
+                                // cancelled
+                            }
+                        }
+                    })
+                    .addConsumer(consumer);
+            if (partitioned) {
+                builder.addConsumer(consumer).setKeyExtractor(new KeyExtractor<Integer>() {
+                    @Override
+                    public Object keyOf(Integer element) {
+                        return element % 2;
+                    }
+                });
+            }
+            Completion completion = builder.build().beginAsync();
+            while (consumed.get() < 1000) {
+                Thread.sleep(1);
+            }
+            completion.cancel(true);
+            completion.await();
+            assertFalse(misordered.get());
+        }
+    }
+    
+    /**
+     * Asserts that failing elements are retried and dead-lettered, that collected failures are rethrown once every 
+     * element has been consumed, and that failing fast stops an endless producer
+     */
+    public void testFailurePolicies() throws InterruptedException
+    {
+        final Set<Integer> attempted = new ConcurrentSkipListSet<Integer>();
+        final Set<Integer> deadLetters = new ConcurrentSkipListSet<Integer>();
+        final AtomicInteger consumed = new AtomicInteger();
+        Consumer<Integer> flaky = new Consumer<Integer>() {
+            @Override
+            public void consume(Iterable<Integer> consumables) {
+                for (Integer i : consumables) {
+                    if (i % 100 == 0 || (i % 7 == 0 && attempted.add(i))) {
+                        throw new IllegalStateException("Failed on " + i);
+                    }
+                    consumed.incrementAndGet();
+                }
+            }
+        };
+        ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new RangeProducer(1000))
+                .addConsumer(flaky)
+                .addConsumer(flaky)
+                .setBatchSize(16)
+                .setFailurePolicy(FailurePolicy.COLLECT)
+                .setRetries(2, new DeadLetterSink<Integer>() {
+                    @Override
+                    public void deadLetter(Integer element, Exception cause) {
+                        deadLetters.add(element);
+                    }
+                })
+                .build()
+                .begin();
+        assertEquals(990, consumed.get());
+        assertEquals(10, deadLetters.size());
+        
+        int failures = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 100 == 0 || i % 7 == 0) {
+                failures++;
+            }
+        }
+        consumed.set(0);
+        attempted.clear();
+        try {
+            ProducerConsumer.<Integer>newBuilder()
+                    .addProducer(new RangeProducer(1000))
+                    .addConsumer(flaky)
+                    .addConsumer(flaky)
+                    .setFailurePolicy(FailurePolicy.COLLECT)
+                    .build()
+                    .begin();
+            fail("Expected ProcessingException");
+        } catch (ProcessingException ex) {
+            assertEquals(failures, ex.getFailures().size());
+            assertEquals(ex.getFailures().size() - 1, ex.getSuppressed().length);
+        }
+        assertEquals(1000 - failures, consumed.get());
+        
+        final AtomicInteger failing = new AtomicInteger();
+        try {
+            ProducerConsumer.<Integer>newBuilder()
+                    .setBufferSize(16)
+                    .addProducer(new Producer<Integer>() {
+                        @Override
+                        public void produce(Production<Integer> production) {
+                            try {
+                                while (true) {
+                                    production.put(0);
+                                }
+                            } catch (InterruptedException ex) {
+                                // stopped
+                            }
+                        }
+                    })
+                    .addConsumer(new Consumer<Integer>() {
+                        @Override
+                        public void consume(Iterable<Integer> consumables) {
+                            for (Integer i : consumables) {
+                                if (failing.incrementAndGet() == 50) {
+                                    throw new IllegalStateException("Failed");
+                                }
+                            }
+                        }
+                    })
+                    .setFailurePolicy(FailurePolicy.FAIL_FAST)
+                    .build()
+                    .begin();
+            fail("Expected ProcessingException");
+        } catch (ProcessingException ex) {
+            assertEquals(1, ex.getFailures().size());
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+    
+    /**
+     * Asserts that processing ends, rather than leaving the producer waiting for space forever, when the only 
+     * consumer throws under the default failure policy and the work queue has its default bound
+     */
+    public void testAllConsumersFail() throws Exception
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        Completion completion = ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new RangeProducer(10 * ProducerConsumer.DEFAULT_BUFFER_SIZE))
+                .addConsumer(new Consumer<Integer>() {
+                    @Override
+                    public void consume(Iterable<Integer> consumables) {
+                        calls.incrementAndGet();
+                        throw new IllegalStateException("Failed");
+                    }
+                })
+                .build()
+                .beginAsync();
+        completion.get(30, TimeUnit.SECONDS);
+        assertEquals(1, calls.get());
+        assertFalse(completion.isCancelled());
+        assertEquals(0, completion.getQueued());
+    }
+    
+    /**
+     * Produces the integers from 0 to {@code n - 1}.
+     */
+    private static class RangeProducer implements Producer<Integer> {
+        
+        private final int n;
+        
+        RangeProducer(int n) {
+            this.n = n;
+        }
+
+        @Override
+        public void produce(Production<Integer> production) {
+            try {
+                for (int i = 0; i < n; i++) {
+                    production.put(i);
+                }
+            } catch (InterruptedException ex) {
+                Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        
+    }
+
+    /**
+     * Asserts that the total size of the elements waiting to be consumed stays within the maximum weight, including 
+     * when batching and when an element is heavier than the maximum
+     */
+    public void testMaxWeight() throws InterruptedException
+    {
+        final int maxWeight = 1 << 16;
+        final int count = 2000;
+        for (int batchSize : new int[] {1, 32}) {
+            final AtomicLong outstanding = new AtomicLong();
+            final AtomicLong maxOutstanding = new AtomicLong();
+            final AtomicInteger consumed = new AtomicInteger();
+            Consumer<byte[]> consumer = new Consumer<byte[]>() {
+                @Override
+                public void consume(Iterable<byte[]> consumables) {
+                    for (byte[] bytes : consumables) {
+                        if (bytes.length <= maxWeight) {
+                            outstanding.addAndGet(-bytes.length);
+                        }
+                        consumed.incrementAndGet();
+                    }
+                }
+            };
+            ProducerConsumer.<byte[]>newBuilder()
+                    .addProducer(new Producer<byte[]>() {
+                        @Override
+                        public void produce(Production<byte[]> production) {
+                            Random random = new Random(42);
+                            try {
+                                for (int i = 0; i < count; i++) {
+                                    byte[] bytes = new byte[i == count / 2 ? 2 * maxWeight : random.nextInt(4096)];
+                                    production.put(bytes);
+                                    if (bytes.length <= maxWeight) {
+                                        maxOutstanding.set(Math.max(maxOutstanding.get(), outstanding.addAndGet(bytes.length)));
+                                    }
+                                }
+                            } catch (InterruptedException ex) {
+                                Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                            }
+                        }
+                    })
+                    .addConsumer(consumer)
+                    .addConsumer(consumer)
+                    .setBatchSize(batchSize)
+                    .setMaxWeight(maxWeight, new Weigher<byte[]>() {
+                        @Override
+                        public long weigh(byte[] element) {
+                            return element.length;
+                        }
+                    })
+                    .build()
+                    .begin();
+            assertEquals(count, consumed.get());
+            // a consumer may have taken an element without having subtracted it yet
+            assertTrue(maxOutstanding.get() + " > " + maxWeight, maxOutstanding.get() <= maxWeight + 2 * 4096);
+        }
+    }
+
+    /**
+     * Asserts that a batch consumer alongside a consumer receives bounded batches, that every element is consumed 
+     * exactly once, and that a failed batch is delivered again as a whole
+     */
+    public void testBatchConsumer() throws InterruptedException
+    {
+        final int count = 10000;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(count);
+        final AtomicInteger largestBatch = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+        ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new RangeProducer(count))
+                .addBatchConsumer(new BatchConsumer<Integer>() {
+                    @Override
+                    public void consume(List<Integer> batch) {
+                        assertTrue(batch.size() >= 1 && batch.size() <= 100);
+                        if (failed.compareAndSet(false, true)) {
+                            throw new IllegalStateException("Failed once");
+                        }
+                        largestBatch.set(Math.max(largestBatch.get(), batch.size()));
+                        for (Integer i : batch) {
+                            seen.incrementAndGet(i);
+                        }
+                    }
+                }, 100, 5, TimeUnit.MILLISECONDS)
+                .addConsumer(new Consumer<Integer>() {
+                    @Override
+                    public void consume(Iterable<Integer> consumables) {
+                        for (Integer i : consumables) {
+                            seen.incrementAndGet(i);
+                        }
+                    }
+                })
+                .setRetries(2, null)
+                .build()
+                .begin();
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, seen.get(i));
+        }
+        assertTrue(failed.get());
+        assertTrue(largestBatch.get() > 1);
+    }
+
+    /**
+     * Asserts that the last batch, filled up to the end of the stream, is retried and dead-lettered when the batch 
+     * consumer fails on it
+     */
+    public void testBatchConsumerFailsOnLastBatch() throws InterruptedException
+    {
+        final AtomicInteger calls = new AtomicInteger();
+        final Set<Integer> deadLetters = new ConcurrentSkipListSet<Integer>();
+        ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new RangeProducer(10))
+                .addBatchConsumer(new BatchConsumer<Integer>() {
+                    @Override
+                    public void consume(List<Integer> batch) {
+                        calls.incrementAndGet();
+                        throw new IllegalStateException("Failed on " + batch);
+                    }
+                }, 100, 50, TimeUnit.MILLISECONDS)
+                .setFailurePolicy(FailurePolicy.COLLECT)
+                .setRetries(3, new DeadLetterSink<Integer>() {
+                    @Override
+                    public void deadLetter(Integer element, Exception cause) {
+                        deadLetters.add(element);
+                    }
+                })
+                .build()
+                .begin();
+        assertEquals(3, calls.get());
+        assertEquals(10, deadLetters.size());
+    }
+
+    /**
+     * Asserts that several batch consumers of a ring buffer with a single producer, which put back each other's 
+     * end-of-stream markers, all finish and consume every element
+     */
+    public void testBatchConsumersWithOneProducer() throws Exception
+    {
+        final int count = 1000;
+        for (int round = 0; round < 50; round++) {
+            final AtomicInteger consumed = new AtomicInteger();
+            BatchConsumer<Integer> consumer = new BatchConsumer<Integer>() {
+                @Override
+                public void consume(List<Integer> batch) {
+                    consumed.addAndGet(batch.size());
+                }
+            };
+            ProducerConsumer.<Integer>newBuilder()
+                    .setQueueStrategy(QueueStrategy.RING_BUFFER)
+                    .setBufferSize(8)
+                    .addProducer(new RangeProducer(count))
+                    .addBatchConsumer(consumer, 64, 1, TimeUnit.MILLISECONDS)
+                    .addBatchConsumer(consumer, 64, 1, TimeUnit.MILLISECONDS)
+                    .addBatchConsumer(consumer, 64, 1, TimeUnit.MILLISECONDS)
+                    .addBatchConsumer(consumer, 64, 1, TimeUnit.MILLISECONDS)
+                    .build()
+                    .beginAsync()
+                    .get(30, TimeUnit.SECONDS);
+            assertEquals(count, consumed.get());
+        }
+    }
+
+    /**
+     * Asserts that a service consumes what is submitted from several threads and put by attached producers, that a 
+     * detached producer stops without losing the elements it put, and that shutting down drains the work queue and 
+     * rejects further submissions
+     */
+    public void testService() throws InterruptedException
+    {
+        final AtomicLong sum = new AtomicLong();
+        Consumer<Integer> consumer = new Consumer<Integer>() {
+            @Override
+            public void consume(Iterable<Integer> consumables) {
+                for (Integer i : consumables) {
+                    sum.addAndGet(i);
+                }
+            }
+        };
+        final Service<Integer> service = ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new RangeProducer(1000))
+                .addConsumer(consumer)
+                .addConsumer(consumer)
+                .setBatchSize(16)
+                .setBufferSize(64)
+                .build()
+                .startService();
+        
+        final AtomicLong endlessPut = new AtomicLong();
+        final CountDownLatch endlessStopped = new CountDownLatch(1);
+        Producer<Integer> endless = new Producer<Integer>() {
+            @Override
+            public void produce(Production<Integer> production) {
+                try {
+                    while (true) {
+                        production.put(1);
+                        endlessPut.incrementAndGet();
+                    }
+                } catch (InterruptedException ex) {
+                    // detached
+                } finally {
+                    endlessStopped.countDown();
+                }
+            }
+        };
+        service.attach(endless);
+        
+        final int submitters = 4;
+        final int perSubmitter = 1000;
+        final AtomicLong offered = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < submitters; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perSubmitter; i++) {
+                            service.submit(2);
+                            if (service.offer(3, 1, TimeUnit.SECONDS)) {
+                                offered.addAndGet(3);
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(endlessPut.get() > 0);
+        assertTrue(service.detach(endless));
+        assertTrue(endlessStopped.await(10, TimeUnit.SECONDS));
+        assertFalse(service.isTerminated());
+        
+        service.shutdown();
+        assertTrue(service.isShutdown());
+        try {
+            service.submit(4);
+            fail("Submission was accepted after shutdown");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        assertTrue(service.awaitTermination(10, TimeUnit.SECONDS));
+        assertTrue(service.isTerminated());
+        assertFalse(service.detach(endless));
+        assertEquals(999L * 1000 / 2 + 2L * submitters * perSubmitter + offered.get() + endlessPut.get(), sum.get());
+    }
+
+    /**
+     * Asserts that a service built with a single producer accepts concurrent submissions into a ring buffer, whether 
+     * shared or partitioned, which would otherwise be built for that one producer alone
+     */
+    public void testServiceSubmissionsWithOneProducer() throws InterruptedException
+    {
+        for (final boolean partitioned : new boolean[] {false, true}) {
+            final AtomicLong consumed = new AtomicLong();
+            Consumer<Integer> consumer = new Consumer<Integer>() {
+                @Override
+                public void consume(Iterable<Integer> consumables) {
+                    for (Integer i : consumables) {
+                        consumed.incrementAndGet();
+                    }
+                }
+            };
+            ProducerConsumer.Builder<Integer> builder = ProducerConsumer.<Integer>newBuilder()
+                    .setQueueStrategy(QueueStrategy.RING_BUFFER)
+                    .setBufferSize(64)
+                    .addProducer(new RangeProducer(100000))
+                    .addConsumer(consumer)
+                    .addConsumer(consumer);
+            if (partitioned) {
+                builder.setKeyExtractor(new KeyExtractor<Integer>() {
+                    @Override
+                    public Object keyOf(Integer element) {
+                        return element;
+                    }
+                });
+            }
+            final Service<Integer> service = builder.build().startService();
+            final int submitters = 4;
+            final int perSubmitter = 50000;
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int t = 0; t < submitters; t++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < perSubmitter; i++) {
+                                service.submit(i);
+                            }
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+                assertFalse(thread.isAlive());
+            }
+            service.shutdown();
+            assertTrue(service.awaitTermination(30, TimeUnit.SECONDS));
+            assertEquals(100000L + submitters * perSubmitter, consumed.get());
+        }
+    }
+
+    /**
+     * Asserts that a consumer may hand its Iterable to several threads, each of which gets an iterator of its own, 
+     * without elements being lost or consumed twice
+     */
+    public void testConsumerFanOut() throws InterruptedException
+    {
+        final int count = 100000;
+        final AtomicIntegerArray seen = new AtomicIntegerArray(count);
+        ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new RangeProducer(count))
+                .addConsumer(new Consumer<Integer>() {
+                    @Override
+                    public void consume(final Iterable<Integer> consumables) {
+                        final CountDownLatch firstDone = new CountDownLatch(1);
+                        List<Thread> workers = new ArrayList<Thread>();
+                        for (int t = 0; t < 4; t++) {
+                            Thread worker = new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    for (Integer i : consumables) {
+                                        seen.incrementAndGet(i);
+                                    }
+                                    firstDone.countDown();
+                                }
+                            });
+                            worker.start();
+                            workers.add(worker);
+                        }
+                        try {
+                            // the single end-of-stream marker ends one worker; the others wait until interrupted
+                            firstDone.await();
+                            for (Thread worker : workers) {
+                                worker.interrupt();
+                            }
+                            for (Thread worker : workers) {
+                                worker.join();
+                            }
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                })
+                .build()
+                .begin();
+        for (int i = 0; i < count; i++) {
+            assertEquals(1, seen.get(i));
+        }
+    }
+
+    /**
+     * Asserts that elements which do not fit in memory are spilled to disk and consumed in the order they were 
+     * produced, and that the segment files are deleted once consumed
+     */
+    public void testSpillToDisk() throws Exception
+    {
+        final int count = 10000;
+        Path directory = Files.createTempDirectory("spill");
+        try {
+            for (int batchSize : new int[] {1, 8}) {
+                final CountDownLatch produced = new CountDownLatch(1);
+                final List<Integer> consumed = new ArrayList<Integer>();
+                ProducerConsumer.<Integer>newBuilder()
+                        .addProducer(new Producer<Integer>() {
+                            @Override
+                            public void produce(Production<Integer> production) {
+                                try {
+                                    for (int i = 0; i < count; i++) {
+                                        production.put(i % 100 == 0 ? null : i);
+                                    }
+                                } catch (InterruptedException ex) {
+                                    Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                                }
+                                produced.countDown();
+                            }
+                        })
+                        .addConsumer(new Consumer<Integer>() {
+                            @Override
+                            public void consume(Iterable<Integer> consumables) {
+                                try {
+                                    // only start once everything beyond the buffer size has spilled
+                                    produced.await();
+                                } catch (InterruptedException ex) {
+                                    return;
+                                }
+                                for (Integer i : consumables) {
+                                    consumed.add(i);
+                                }
+                            }
+                        })
+                        .setBufferSize(16)
+                        .setBatchSize(batchSize)
+                        .setSpillDirectory(directory, new Serializer<Integer>() {
+                            @Override
+                            public byte[] serialize(Integer element) {
+                                return ByteBuffer.allocate(4).putInt(element).array();
+                            }
+
+                            @Override
+                            public Integer deserialize(ByteBuffer bytes) {
+                                return bytes.getInt();
+                            }
+                        })
+                        .setSpillSegmentSize(1024)
+                        .build()
+                        .begin();
+                assertEquals(count, consumed.size());
+                for (int i = 0; i < count; i++) {
+                    assertEquals(i % 100 == 0 ? null : Integer.valueOf(i), consumed.get(i));
+                }
+                String[] remaining = directory.toFile().list();
+                assertEquals(0, remaining.length);
+            }
+        } finally {
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Asserts that no objects are allocated per element when producing to and consuming from a ring buffer, once 
+     * both sides are warmed up. Skipped if the JVM cannot measure per-thread allocation.
+     */
+    public void testNoAllocationPerElement() throws InterruptedException
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) 
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        final int warmup = 100000;
+        final int measured = 1000000;
+        final Object element = new Object();
+        final long[] allocated = new long[2];
+        ProducerConsumer.<Object>newBuilder()
+                .setQueueStrategy(QueueStrategy.RING_BUFFER)
+                .addProducer(new Producer<Object>() {
+                    @Override
+                    public void produce(Production<Object> production) {
+                        try {
+                            for (int i = 0; i < warmup; i++) {
+                                production.put(i % 2 == 0 ? element : null);
+                            }
+                            long id = Thread.currentThread().getId();
+                            long before = threads.getThreadAllocatedBytes(id);
+                            for (int i = 0; i < measured; i++) {
+                                production.put(i % 2 == 0 ? element : null);
+                            }
+                            allocated[0] = threads.getThreadAllocatedBytes(id) - before;
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                })
+                .addConsumer(new Consumer<Object>() {
+                    @Override
+                    public void consume(Iterable<Object> consumables) {
+                        int i = 0;
+                        long id = Thread.currentThread().getId();
+                        long before = 0;
+                        for (Object o : consumables) {
+                            if (++i == warmup) {
+                                before = threads.getThreadAllocatedBytes(id);
+                            }
+                        }
+                        allocated[1] = threads.getThreadAllocatedBytes(id) - before;
+                    }
+                })
+                .build()
+                .begin();
+        System.out.format("Allocated while producing %d elements: %d bytes, consuming: %d bytes\n", measured, allocated[0], allocated[1]);
+        assertTrue(allocated[0] < measured);
+        assertTrue(allocated[1] < measured);
+    }
+    
+    /**
+     * Asserts that metrics count every element and are readable over JMX
+     */
+    public void testMetrics() throws Exception
+    {
+        Set<String> stash = new ConcurrentSkipListSet<String>();
+        Metrics metrics = new Metrics();
+        ProducerConsumer<String> pc = ProducerConsumer.<String>newBuilder()
+                .addProducer(new TestProducer(stash))
+                .addProducer(new TestProducer(stash))
+                .addConsumer(new TestConsumer(stash))
+                .addConsumer(new TestConsumer(stash))
+                .setBufferSize(8)
+                .setMetrics(metrics)
+                .build();
+        pc.begin();
+        assertEquals(2 * TestProducer.NUM, metrics.getProduced());
+        assertEquals(2 * TestProducer.NUM, metrics.getConsumed());
+        assertEquals(TestProducer.NUM, metrics.getProducedPerProducer()[1]);
+        assertEquals(2, metrics.getConsumedPerConsumer().length);
+        assertTrue(metrics.getQueueHighWaterMark() <= 8);
+        assertEquals(0, metrics.getConsumerExceptions());
+        String name = "org.knoesis:type=ProducerConsumer,name=testMetrics";
+        metrics.registerMBean(name);
+        try {
+            assertEquals(2L * TestProducer.NUM, ManagementFactory.getPlatformMBeanServer().getAttribute(new javax.management.ObjectName(name), "Consumed"));
+        } finally {
+            metrics.unregisterMBean(name);
+        }
+    }
+    
+    /**
+     * Asserts that consumers are added while there is a backlog, and that all elements are consumed
+     */
+    public void testElasticConsumers() throws InterruptedException
+    {
+        final int num = 500;
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final Consumer<Integer> slowConsumer = new Consumer<Integer>() {
+            @Override
+            public void consume(Iterable<Integer> consumables) {
+                int now = running.incrementAndGet();
+                synchronized (peak) {
+                    peak.set(Math.max(peak.get(), now));
+                }
+                try {
+                    for (Integer i : consumables) {
+                        Thread.sleep(1);
+                        consumed.incrementAndGet();
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        ProducerConsumer.<Integer>newBuilder()
+                .addProducer(new Producer<Integer>() {
+                    @Override
+                    public void produce(Production<Integer> production) {
+                        try {
+                            for (int i = 0; i < num; i++) {
+                                production.put(i);
+                            }
+                        } catch (InterruptedException ex) {
+                            Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                        }
+                    }
+                })
+                .setConsumerFactory(new ConsumerFactory<Integer>() {
+                    @Override
+                    public Consumer<? super Integer> newConsumer() {
+                        return slowConsumer;
+                    }
+                }, 1, 4)
+                .setConsumerIdleTimeout(50, TimeUnit.MILLISECONDS)
+                .build()
+                .begin();
+        assertEquals(num, consumed.get());
+        assertEquals(0, running.get());
+        assertTrue(peak.get() > 1);
+    }
+    
     public class TestProducer implements Producer<String> {
 
         private static final int NUM = 10000;
@@ -150,4 +1170,41 @@ public class ProducerConsumerTest
                 .begin();
     }
     
+    public void testIntProducerConsumer() throws InterruptedException {
+        final int perProducer = 10000;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicInteger count = new AtomicInteger();
+        IntProducer producer = new IntProducer() {
+            @Override
+            public void produce(IntProduction production) {
+                try {
+                    for (int i = 0; i < perProducer; i++) {
+                        production.put(i);
+                    }
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(ProducerConsumerTest.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        };
+        IntConsumer consumer = new IntConsumer() {
+            @Override
+            public void consume(IntConsumables consumables) {
+                while (consumables.hasNext()) {
+                    sum.addAndGet(consumables.next());
+                    count.incrementAndGet();
+                }
+            }
+        };
+        IntProducerConsumer.newBuilder()
+                .addProducer(producer)
+                .addProducer(producer)
+                .addConsumer(consumer)
+                .addConsumer(consumer)
+                .setBufferSize(64)
+                .build()
+                .begin();
+        assertEquals(2 * perProducer, count.get());
+        assertEquals(2L * perProducer * (perProducer - 1) / 2, sum.get());
+    }
+    
 }